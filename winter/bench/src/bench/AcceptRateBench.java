@@ -0,0 +1,118 @@
+package bench;
+
+import http.HTTPServer;
+import http.Response;
+import logging.Level;
+import logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many connections per second the server can accept and answer as the number of acceptor threads
+ * (SO_REUSEPORT listeners) grows. Every connection carries a single tiny request, so accepting dominates.
+ * <p>
+ * Usage: {@code java -cp out:bench-out bench.AcceptRateBench [maxAcceptors] [clients] [seconds]}
+ * <p>
+ * The clients run in the same JVM as the server, so on small machines they compete for the same cores - run it on a
+ * box with spare cores to see the scaling properly.
+ */
+public class AcceptRateBench {
+    private static final byte[] REQUEST = "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int maxAcceptors = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Log.configure(Level.WARN, 1);
+        Path documentRoot = Files.createTempDirectory("bench-root");
+
+        System.out.printf("%d cores, %d clients, %ds per run%n%n", Runtime.getRuntime().availableProcessors(), clients, seconds);
+        System.out.printf("%10s %14s %10s %8s%n", "acceptors", "conns/sec", "scaling", "errors");
+
+        double baseline = 0;
+        for (int acceptors = 1; acceptors <= maxAcceptors; acceptors *= 2) {
+            int port = 20000 + acceptors;
+            HTTPServer server = new HTTPServer(documentRoot);
+            server.route("GET", "/ping", request -> new Response(200, Map.of(), "pong"));
+
+            int threads = acceptors;
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.start(port, threads);
+                } catch (IOException e) {
+                    System.err.println("Server failed: " + e.getMessage());
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+            awaitListening(port);
+
+            LongAdder errors = new LongAdder();
+            run(port, clients, 1, errors); // warm up
+            errors.reset();
+            long completed = run(port, clients, seconds, errors);
+            server.stop();
+
+            double rate = completed / (double) seconds;
+            if (acceptors == 1) baseline = rate;
+            System.out.printf("%10d %14.0f %9.2fx %8d%n", acceptors, rate, rate / baseline, errors.sum());
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(REQUEST);
+                socket.getInputStream().readAllBytes();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server never started listening on port " + port);
+    }
+
+    private static long run(int port, int clients, int seconds, LongAdder errors) throws InterruptedException {
+        LongAdder completed = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            Thread.ofVirtual().start(() -> {
+                byte[] buffer = new byte[4096];
+                while (System.nanoTime() < deadline) {
+                    try (Socket socket = new Socket()) {
+                        socket.connect(new InetSocketAddress("localhost", port));
+                        OutputStream out = socket.getOutputStream();
+                        out.write(REQUEST);
+                        out.flush();
+                        InputStream in = socket.getInputStream();
+                        //noinspection StatementWithEmptyBody
+                        while (in.read(buffer) != -1) {
+                            // server closes the connection once it has responded
+                        }
+                        completed.increment();
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+                done.countDown();
+            });
+        }
+
+        done.await();
+        return completed.sum();
+    }
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import events.Event;
+import events.Events;
+import events.PurchaseManager;
+import logging.Level;
+import logging.Log;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for the TicketChief event catalogue and purchase bookkeeping.
+ */
+public class EventsBenchmarks {
+    public static List<Microbench.Case> cases() throws Exception {
+        Log.configure(Level.WARN, 1);
+        List<Microbench.Case> cases = new ArrayList<>();
+
+        // the shipped catalogue has 10 events, 1000 is a busy season
+        for (int size : new int[] {10, 1000}) {
+            Events events = catalogue(size);
+            Path file = Files.createTempFile("bench-events-", ".json");
+            file.toFile().deleteOnExit();
+            Files.writeString(file, events.getEventsAsJson());
+
+            cases.add(new Microbench.Case("events.fromJSONFile." + size, () -> Events.fromJSONFile(file)));
+            cases.add(new Microbench.Case("events.getEventsAsJson." + size, events::getEventsAsJson));
+        }
+
+        // plenty of tickets, so it can sell for as long as the benchmark runs
+        Event event = new Event(Integer.MAX_VALUE, "Radiohead", "O2 Academy Glasgow", Instant.now());
+        cases.add(new Microbench.Case("events.sellTickets.2", () -> event.sellTickets(2)));
+
+        // one real purchase request to report on; the manager is stopped straight away so that its payment processor
+        // isn't spinning on a core while everything else is being measured
+        PurchaseManager purchaseManager = new PurchaseManager(catalogue(10));
+        int requestId = purchaseManager.requestPurchase(0, 2).id();
+        purchaseManager.shutdown();
+        cases.add(new Microbench.Case(
+            "events.getRequestStatusJson", () -> purchaseManager.getRequestStatusJson(requestId)
+        ));
+
+        return cases;
+    }
+
+    private static Events catalogue(int size) {
+        List<Event> events = new ArrayList<>();
+        Instant start = Instant.parse("2025-05-14T19:30:00Z");
+        for (int i = 0; i < size; i++) {
+            events.add(new Event(250, "Artist " + i, "Venue number " + i, start.plusSeconds(86_400L * i)));
+        }
+        return new Events(events);
+    }
+}
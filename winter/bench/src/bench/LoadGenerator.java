@@ -0,0 +1,530 @@
+package bench;
+
+import metrics.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Open-loop load generator for a running server, replaying a TicketChief ticket drop: people browsing the catalogue,
+ * viewing events, queueing to buy, polling their place in the queue, cancelling and refunding.
+ * <p>
+ * Requests are sent on a fixed schedule (or a Poisson one with {@code --poisson}) no matter how quickly the server
+ * answers, and latency is measured from when each request <em>should</em> have been sent. A closed-loop client that
+ * waits for each response before sending the next quietly stops sending while the server stalls, so the stall never
+ * shows up in its numbers (coordinated omission); this one keeps the schedule, so it does. Service time, measured
+ * from when the request actually went out, is printed alongside for comparison.
+ * <p>
+ * Requests the generator had to drop, and ones still unanswered when it stops waiting, are the slowest of the lot, so
+ * rather than vanishing from the tables they count as timeouts, with a latency of however long they'd been waiting
+ * by then. That's a lower bound, but leaving them out would make the tail look better the worse the server does.
+ * <p>
+ * Usage: {@code java -cp out:bench-out bench.LoadGenerator [--option=value ...]}
+ * <ul>
+ *     <li>{@code --host=localhost --port=8000} server to drive</li>
+ *     <li>{@code --rate=200} requests per second</li>
+ *     <li>{@code --seconds=30} length of the run, of which the first {@code --warmup=5} are left out of the tables</li>
+ *     <li>{@code --mix=browse:40,view:30,purchase:10,poll:15,cancel:3,refund:2} relative weights of each operation</li>
+ *     <li>{@code --poisson} exponentially distributed gaps between requests rather than even ones</li>
+ *     <li>{@code --timeout=10000} socket timeout in milliseconds</li>
+ *     <li>{@code --max-outstanding=10000} requests in flight before the generator starts dropping them</li>
+ * </ul>
+ * All traffic comes from one address, so set {@code purchaseRateLimitPerSecond=0} on the server unless the rate
+ * limiter is what's being measured.
+ */
+public class LoadGenerator {
+    enum Operation { BROWSE, VIEW, PURCHASE, POLL, CANCEL, REFUND }
+
+    private static final String DEFAULT_MIX = "browse:40,view:30,purchase:10,poll:15,cancel:3,refund:2";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final Pattern ID_PATTERN = Pattern.compile("\"id\"\\s*:\\s*(\\d+)");
+    private static final Pattern EVENT_ID_PATTERN = Pattern.compile("\"eventId\"\\s*:\\s*(\\d+)");
+    private static final Pattern FULFILLED_PATTERN = Pattern.compile(
+        "\"position\"\\s*:\\s*0\\s*,\\s*\"ticketIds\"\\s*:\\s*\\[(?<ticketIds>\\s*\"[^]]+)]"
+    );
+
+    /**
+     * What came back for one request: the status code, or -1 if the connection failed.
+     */
+    record Result(int status, String body) {
+        static final Result IO_ERROR = new Result(-1, "");
+    }
+
+    /**
+     * Tickets from a fulfilled purchase, ready to be refunded.
+     */
+    record Purchase(int eventId, String ticketIds) {}
+
+    /**
+     * A request that's been scheduled but hasn't completed, either in flight or dropped before it was sent. Compared
+     * by identity, as two requests can be scheduled for the same nanosecond.
+     */
+    static final class Pending {
+        final Operation operation;
+        final long intendedNanos;
+        final boolean measured;
+
+        Pending(Operation operation, long intendedNanos, boolean measured) {
+            this.operation = operation;
+            this.intendedNanos = intendedNanos;
+            this.measured = measured;
+        }
+    }
+
+    static final class Stats {
+        final Histogram latency = new Histogram();
+        final Histogram serviceTime = new Histogram();
+        final LongAdder success = new LongAdder();
+        final LongAdder clientErrors = new LongAdder();
+        final LongAdder serverErrors = new LongAdder();
+        final LongAdder ioErrors = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        void record(Result result, long intendedNanos, long sentNanos, long doneNanos) {
+            latency.record(doneNanos - intendedNanos);
+            serviceTime.record(doneNanos - sentNanos);
+            if (result.status() < 0) {
+                ioErrors.increment();
+                return;
+            }
+            statuses.computeIfAbsent(result.status(), status -> new LongAdder()).increment();
+            if (result.status() >= 500) {
+                serverErrors.increment();
+            } else if (result.status() >= 400) {
+                clientErrors.increment();
+            } else {
+                success.increment();
+            }
+        }
+
+        /**
+         * Records a request that never got an answer, as having waited until {@code gaveUpNanos}.
+         */
+        void recordTimeout(long intendedNanos, long gaveUpNanos) {
+            latency.record(gaveUpNanos - intendedNanos);
+            timeouts.increment();
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final String hostHeader;
+    private final int timeoutMillis;
+    private final int eventCount;
+
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final Stats total = new Stats();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder unanswered = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // whoever removes a request from here gets to record it, the request itself or the drain giving up on it
+    private final Set<Pending> inFlight = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Pending> shed = new ConcurrentLinkedQueue<>();
+
+    // recently queued purchase request IDs, for polling and cancelling; a null slot is empty
+    private final AtomicReferenceArray<Integer> queued = new AtomicReferenceArray<>(4096);
+    private final AtomicLong queuedCursor = new AtomicLong();
+    private final ConcurrentLinkedQueue<Purchase> refundable = new ConcurrentLinkedQueue<>();
+
+    // one slot per second of the run (plus a few for stragglers), keyed by when requests completed
+    private final int timelineSlots;
+    private final LongAdder[] timelineCompleted;
+    private final LongAdder[] timelineErrors;
+    private final Histogram[] timelineLatency;
+    private long startNanos;
+
+    LoadGenerator(String host, int port, int timeoutMillis, int seconds) throws IOException {
+        this.address = new InetSocketAddress(host, port);
+        this.hostHeader = host + ":" + port;
+        this.timeoutMillis = timeoutMillis;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+
+        int slots = seconds + 1 + (timeoutMillis + 999) / 1000;
+        timelineSlots = slots;
+        timelineCompleted = new LongAdder[slots];
+        timelineErrors = new LongAdder[slots];
+        timelineLatency = new Histogram[slots];
+        for (int i = 0; i < slots; i++) {
+            timelineCompleted[i] = new LongAdder();
+            timelineErrors[i] = new LongAdder();
+            timelineLatency[i] = new Histogram();
+        }
+
+        Result catalogue = send("GET", "/ticketchief/tickets", Map.of(), null);
+        if (catalogue.status() != 200) {
+            throw new IOException("Couldn't fetch the event catalogue from " + hostHeader);
+        }
+        this.eventCount = Math.max(1, catalogue.body().split("\"artist\"", -1).length - 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "8000"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        boolean poisson = options.containsKey("poisson");
+        int timeoutMillis = Integer.parseInt(options.getOrDefault("timeout", "10000"));
+        int maxOutstanding = Integer.parseInt(options.getOrDefault("max-outstanding", "10000"));
+        Map<Operation, Integer> mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+
+        LoadGenerator generator = new LoadGenerator(host, port, timeoutMillis, seconds);
+        System.out.printf(
+            "%s:%d, %.0f req/s %s for %ds (%ds warmup), %d events, mix %s%n%n",
+            host, port, rate, poisson ? "poisson" : "constant", seconds, warmup, generator.eventCount, mix
+        );
+
+        generator.run(rate, seconds, warmup, poisson, maxOutstanding, mix);
+        generator.printReport(warmup);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            String[] parts = arg.substring(2).split("=", 2);
+            options.put(parts[0], parts.length > 1 ? parts[1] : "");
+        }
+        return options;
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":", 2);
+            weights.put(Operation.valueOf(parts[0].strip().toUpperCase()), Integer.parseInt(parts[1].strip()));
+        }
+        return weights;
+    }
+
+    void run(
+        double rate, int seconds, int warmup, boolean poisson, int maxOutstanding, Map<Operation, Integer> mix
+    ) throws InterruptedException {
+        List<Operation> operations = new ArrayList<>(mix.keySet());
+        int[] cumulativeWeights = new int[operations.size()];
+        int totalWeight = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            totalWeight += mix.get(operations.get(i));
+            cumulativeWeights[i] = totalWeight;
+        }
+
+        SplittableRandom random = new SplittableRandom(42);
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long warmupEndNanos = startNanos + TimeUnit.SECONDS.toNanos(warmup);
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        // the schedule is fixed up front: each request has an intended start time whether or not we're keeping up
+        double scheduled = startNanos;
+        while (scheduled < endNanos) {
+            long intendedNanos = (long) scheduled;
+            long delay = intendedNanos - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+
+            int pick = random.nextInt(totalWeight);
+            int index = 0;
+            while (cumulativeWeights[index] <= pick) index++;
+            Operation operation = operations.get(index);
+            Pending pending = new Pending(operation, intendedNanos, intendedNanos >= warmupEndNanos);
+
+            if (outstanding.get() >= maxOutstanding) {
+                // the generator itself is swamped, which says more about the server than any latency number could
+                dropped.increment();
+                shed.add(pending);
+            } else {
+                outstanding.incrementAndGet();
+                inFlight.add(pending);
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        execute(pending);
+                    } finally {
+                        outstanding.decrementAndGet();
+                    }
+                });
+            }
+
+            scheduled += poisson ? -Math.log(1 - random.nextDouble()) * intervalNanos : intervalNanos;
+        }
+
+        long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) * 2;
+        while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+
+        // whatever's left never got an answer, and has been waiting until now
+        long gaveUpNanos = System.nanoTime();
+        for (Pending pending : shed) {
+            recordTimeout(pending, gaveUpNanos);
+        }
+        for (Pending pending : inFlight) {
+            if (inFlight.remove(pending)) {
+                unanswered.increment();
+                recordTimeout(pending, gaveUpNanos);
+            }
+        }
+    }
+
+    private void recordTimeout(Pending pending, long gaveUpNanos) {
+        if (pending.measured) {
+            stats.get(pending.operation).recordTimeout(pending.intendedNanos, gaveUpNanos);
+            total.recordTimeout(pending.intendedNanos, gaveUpNanos);
+        }
+    }
+
+    private void execute(Pending pending) {
+        Operation operation = pending.operation;
+        long intendedNanos = pending.intendedNanos;
+        long sentNanos = System.nanoTime();
+        Operation performed = operation;
+        Result result = switch (operation) {
+            case BROWSE -> browse();
+            case VIEW -> view();
+            case PURCHASE -> purchase();
+            case POLL -> poll();
+            case CANCEL -> cancel();
+            case REFUND -> refund();
+        };
+        if (result == null) {
+            // nothing to poll, cancel or refund yet, so that user browses instead
+            performed = Operation.BROWSE;
+            result = browse();
+        }
+        long doneNanos = System.nanoTime();
+        if (!inFlight.remove(pending)) {
+            return; // finished after the drain gave up on it, so it's already been counted as a timeout
+        }
+
+        long second = (doneNanos - startNanos) / TimeUnit.SECONDS.toNanos(1);
+        int slot = (int) Math.min(Math.max(0, second), timelineSlots - 1);
+        timelineCompleted[slot].increment();
+        timelineLatency[slot].record(doneNanos - intendedNanos);
+        if (result.status() < 0 || result.status() >= 500) {
+            timelineErrors[slot].increment();
+        }
+
+        if (pending.measured) {
+            stats.get(performed).record(result, intendedNanos, sentNanos, doneNanos);
+            total.record(result, intendedNanos, sentNanos, doneNanos);
+        }
+    }
+
+    private Result browse() {
+        return send("GET", "/ticketchief/tickets", Map.of(), null);
+    }
+
+    private Result view() {
+        int eventId = ThreadLocalRandom.current().nextInt(eventCount);
+        return send("GET", "/ticketchief/tickets/" + eventId, Map.of("Accept", "application/json"), null);
+    }
+
+    private Result purchase() {
+        int eventId = ThreadLocalRandom.current().nextInt(eventCount);
+        int tickets = ThreadLocalRandom.current().nextInt(1, 3);
+        Result result = send(
+            "POST",
+            "/ticketchief/queue",
+            Map.of("Accept", "application/json", "Content-Type", "application/json", "X-Nonce", nonce()),
+            "{\"eventId\": " + eventId + ", \"tickets\": " + tickets + "}"
+        );
+
+        if (result.status() == 201) {
+            Matcher matcher = ID_PATTERN.matcher(result.body());
+            if (matcher.find()) {
+                int slot = (int) (queuedCursor.getAndIncrement() % queued.length());
+                queued.set(slot, Integer.parseInt(matcher.group(1)));
+            }
+        }
+        return result;
+    }
+
+    private Result poll() {
+        int slot = randomQueuedSlot();
+        Integer id = slot < 0 ? null : queued.get(slot);
+        if (id == null) {
+            return null;
+        }
+
+        Result result = send("GET", "/ticketchief/queue/" + id, Map.of("Accept", "application/json"), null);
+        Matcher fulfilled = FULFILLED_PATTERN.matcher(result.body());
+        Matcher eventId = EVENT_ID_PATTERN.matcher(result.body());
+        if (fulfilled.find() && eventId.find() && queued.compareAndSet(slot, id, null)) {
+            refundable.add(new Purchase(Integer.parseInt(eventId.group(1)), fulfilled.group("ticketIds")));
+        }
+        return result;
+    }
+
+    private Result cancel() {
+        int slot = randomQueuedSlot();
+        Integer id = slot < 0 ? null : queued.getAndSet(slot, null);
+        if (id == null) {
+            return null;
+        }
+        return send("DELETE", "/ticketchief/queue/" + id, Map.of("X-Nonce", nonce()), null);
+    }
+
+    /**
+     * @return a random slot among those written so far, or -1 before the first purchase
+     */
+    private int randomQueuedSlot() {
+        int filled = (int) Math.min(queuedCursor.get(), queued.length());
+        return filled == 0 ? -1 : ThreadLocalRandom.current().nextInt(filled);
+    }
+
+    private Result refund() {
+        Purchase purchase = refundable.poll();
+        if (purchase == null) {
+            return null;
+        }
+        return send(
+            "POST",
+            "/ticketchief/tickets/" + purchase.eventId() + "/refund",
+            Map.of("Content-Type", "application/json", "X-Nonce", nonce()),
+            "{\"ticketIds\": [" + purchase.ticketIds() + "]}"
+        );
+    }
+
+    private static String nonce() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Sends one request on a fresh connection, straight onto a socket so the client adds as little as possible.
+     */
+    private Result send(String method, String path, Map<String, String> headers, String body) {
+        StringBuilder request = new StringBuilder()
+            .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+            .append("Host: ").append(hostHeader).append("\r\n")
+            .append("Connection: close\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        if (body != null) {
+            request.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        request.append("\r\n");
+
+        try (Socket socket = new Socket()) {
+            socket.connect(address, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(content);
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            String response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            if (!response.startsWith("HTTP/1.1 ") || response.length() < 12) {
+                return Result.IO_ERROR;
+            }
+            int status = Integer.parseInt(response.substring(9, 12));
+            int bodyStart = response.indexOf("\r\n\r\n");
+            return new Result(status, bodyStart < 0 ? "" : response.substring(bodyStart + 4));
+        } catch (IOException | NumberFormatException e) {
+            return Result.IO_ERROR;
+        }
+    }
+
+    void printReport(int warmup) {
+        System.out.println("Latency from intended start, in ms (coordinated-omission corrected, timeouts included)");
+        printHeader();
+        for (Operation operation : Operation.values()) {
+            printRow(operation.name().toLowerCase(), stats.get(operation), stats.get(operation).latency);
+        }
+        printRow("all", total, total.latency);
+
+        System.out.println();
+        System.out.println(
+            "Service time from actual send, in ms (what a closed-loop client would have reported, timeouts left out)"
+        );
+        printHeader();
+        printRow("all", total, total.serviceTime);
+
+        Map<Integer, Long> statuses = new TreeMap<>();
+        total.statuses.forEach((status, count) -> statuses.put(status, count.sum()));
+        System.out.printf(
+            "%nStatus codes: %s, connection errors: %d, dropped by generator: %d, still unanswered at the end: %d%n",
+            statuses, total.ioErrors.sum(), dropped.sum(), unanswered.sum()
+        );
+
+        System.out.printf("%nTimeline (by completion, warmup is the first %ds)%n", warmup);
+        System.out.printf("%6s %10s %8s %10s %10s %10s%n", "second", "completed", "errors", "p50", "p99", "max");
+        for (int i = 0; i < timelineSlots; i++) {
+            Histogram.Snapshot snapshot = timelineLatency[i].snapshot();
+            if (snapshot.count() == 0 && timelineCompleted[i].sum() == 0) {
+                // nothing finished that second, which is only interesting mid-run
+                boolean trailing = true;
+                for (int j = i; j < timelineSlots; j++) {
+                    trailing &= timelineCompleted[j].sum() == 0;
+                }
+                if (trailing) break;
+            }
+            System.out.printf(
+                "%6d %10d %8d %10s %10s %10s%n",
+                i, timelineCompleted[i].sum(), timelineErrors[i].sum(),
+                millis(snapshot.valueAtPercentile(50)), millis(snapshot.valueAtPercentile(99)), millis(snapshot.max())
+            );
+        }
+    }
+
+    private static void printHeader() {
+        System.out.printf(
+            "%-9s %8s %7s %6s %6s %6s %7s", "operation", "count", "2xx/3xx", "4xx", "5xx", "io", "timeout"
+        );
+        for (double percentile : PERCENTILES) {
+            // p99 rather than p99.0, but p99.9 as is
+            String label = percentile == Math.rint(percentile)
+                ? String.valueOf((int) percentile)
+                : String.valueOf(percentile);
+            System.out.printf(" %9s", "p" + label);
+        }
+        System.out.printf(" %9s%n", "max");
+    }
+
+    private static void printRow(String name, Stats stats, Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        System.out.printf(
+            "%-9s %8d %7d %6d %6d %6d %7d",
+            name, snapshot.count(), stats.success.sum(), stats.clientErrors.sum(), stats.serverErrors.sum(),
+            stats.ioErrors.sum(), stats.timeouts.sum()
+        );
+        for (double percentile : PERCENTILES) {
+            System.out.printf(" %9s", millis(snapshot.valueAtPercentile(percentile)));
+        }
+        System.out.printf(" %9s%n", millis(snapshot.max()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
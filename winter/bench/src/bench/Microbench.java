@@ -0,0 +1,215 @@
+package bench;
+
+import metrics.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A small microbenchmark harness for the server's hot paths, in the spirit of JMH but without the dependency.
+ * <p>
+ * Each case is warmed up until the JIT has had its go, then run in timed iterations. Calls are made in batches sized
+ * to take about 10µs, so timer overhead stays out of the way; the per-call time of every batch goes into a
+ * {@link Histogram} for percentiles, and the thread's allocation counter gives bytes allocated per call. Results are
+ * fed to a {@link Blackhole} so the JIT can't optimise the work away.
+ * <p>
+ * Usage: {@code java -Xmx1g -cp out:bench-out bench.Microbench [--filter=regex] [--warmup=5] [--iterations=10]
+ * [--iteration-millis=500]}
+ */
+public class Microbench {
+    /**
+     * One thing to measure. The operation's return value is consumed, so return whatever the work produced.
+     */
+    public record Case(String name, Callable<Object> operation) {}
+
+    /**
+     * Measurements for one case.
+     *
+     * @param opsPerSecond      mean throughput across iterations
+     * @param opsPerSecondError half-width of a ~99% confidence interval around the mean
+     * @param p50Nanos          median time per call
+     * @param p99Nanos          99th percentile time per call
+     * @param bytesPerOp        bytes allocated per call
+     */
+    public record Result(
+        String name, double opsPerSecond, double opsPerSecondError, long p50Nanos, long p99Nanos, double bytesPerOp
+    ) {}
+
+    /**
+     * Swallows results in a way the JIT can't prove is pointless.
+     */
+    public static final class Blackhole {
+        private int seed = (int) System.nanoTime();
+        // written only when a practically impossible condition holds, so it costs nothing but can't be eliminated
+        public volatile Object sink;
+
+        public void consume(Object value) {
+            seed = seed * 1664525 + 1013904223;
+            if (seed == 0x5eed && value != null && value.hashCode() == seed) {
+                sink = value;
+            }
+        }
+    }
+
+    private static final long TARGET_BATCH_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final Blackhole blackhole = new Blackhole();
+
+    public Microbench(int warmupIterations, int iterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Microbench harness = new Microbench(
+            Integer.parseInt(options.getOrDefault("warmup", "5")),
+            Integer.parseInt(options.getOrDefault("iterations", "10")),
+            Long.parseLong(options.getOrDefault("iteration-millis", "500"))
+        );
+
+        List<Result> results = harness.runAll(allCases(), Pattern.compile(options.getOrDefault("filter", ".*")));
+        System.out.println();
+        printTable(results);
+        // the purchase manager's threads are stopped, but there's no point waiting around for stragglers
+        System.exit(0);
+    }
+
+    static List<Case> allCases() throws Exception {
+        List<Case> cases = new ArrayList<>();
+        cases.addAll(http.HttpBenchmarks.cases());
+        cases.addAll(EventsBenchmarks.cases());
+        return cases;
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            String[] parts = arg.substring(2).split("=", 2);
+            options.put(parts[0], parts.length > 1 ? parts[1] : "");
+        }
+        return options;
+    }
+
+    List<Result> runAll(List<Case> cases, Pattern filter) throws Exception {
+        System.out.printf(
+            "%d cores, %s %s, %d warmup + %d x %dms iterations%n",
+            Runtime.getRuntime().availableProcessors(),
+            System.getProperty("java.vm.name"), System.getProperty("java.version"),
+            warmupIterations, iterations, TimeUnit.NANOSECONDS.toMillis(iterationNanos)
+        );
+
+        List<Result> results = new ArrayList<>();
+        for (Case benchmark : cases) {
+            if (filter.matcher(benchmark.name()).find()) {
+                System.out.printf("  %s...%n", benchmark.name());
+                results.add(run(benchmark));
+            }
+        }
+        return results;
+    }
+
+    Result run(Case benchmark) throws Exception {
+        Callable<Object> operation = benchmark.operation();
+        int batch = calibrate(operation);
+
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation, batch, new Histogram());
+        }
+
+        Histogram perCall = new Histogram();
+        double[] throughputs = new double[iterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long startNanos = System.nanoTime();
+            long ops = iteration(operation, batch, perCall);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            totalBytes += THREADS.getCurrentThreadAllocatedBytes() - bytesBefore;
+            totalOps += ops;
+            throughputs[i] = ops / (elapsedNanos / 1e9);
+        }
+
+        double mean = 0;
+        for (double throughput : throughputs) mean += throughput;
+        mean /= iterations;
+        double variance = 0;
+        for (double throughput : throughputs) variance += (throughput - mean) * (throughput - mean);
+        double stddev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        // 2.58 standard errors is ~99% for a normal distribution, near enough for a sanity check
+        double error = 2.58 * stddev / Math.sqrt(iterations);
+
+        Histogram.Snapshot snapshot = perCall.snapshot();
+        return new Result(
+            benchmark.name(), mean, error,
+            snapshot.valueAtPercentile(50), snapshot.valueAtPercentile(99),
+            (double) totalBytes / totalOps
+        );
+    }
+
+    /**
+     * Finds how many calls make a batch of about {@link #TARGET_BATCH_NANOS}.
+     */
+    private int calibrate(Callable<Object> operation) throws Exception {
+        int batch = 1;
+        while (batch < 1 << 20) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                blackhole.consume(operation.call());
+            }
+            if (System.nanoTime() - start >= TARGET_BATCH_NANOS) {
+                break;
+            }
+            batch *= 2;
+        }
+        return batch;
+    }
+
+    /**
+     * @return number of calls made
+     */
+    private long iteration(Callable<Object> operation, int batch, Histogram perCall) throws Exception {
+        long ops = 0;
+        long deadline = System.nanoTime() + iterationNanos;
+        long now = System.nanoTime();
+        while (now < deadline) {
+            long batchStart = now;
+            for (int i = 0; i < batch; i++) {
+                blackhole.consume(operation.call());
+            }
+            now = System.nanoTime();
+            perCall.record((now - batchStart) / batch);
+            ops += batch;
+        }
+        return ops;
+    }
+
+    static void printTable(List<Result> results) {
+        System.out.printf(
+            "%-36s %14s %12s %10s %10s %10s%n", "benchmark", "ops/s", "error", "p50 ns", "p99 ns", "B/op"
+        );
+        for (Result result : results) {
+            String error = String.format("+/- %.1f%%", 100 * result.opsPerSecondError() / result.opsPerSecond());
+            System.out.printf(
+                "%-36s %14.0f %12s %10d %10d %10.1f%n",
+                result.name(), result.opsPerSecond(), error, result.p50Nanos(), result.p99Nanos(), result.bytesPerOp()
+            );
+        }
+    }
+}
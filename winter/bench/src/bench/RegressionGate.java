@@ -0,0 +1,285 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the {@link Microbench} cases and compares them against a committed baseline, failing if anything got slower
+ * (or hungrier) than the tolerances allow.
+ * <p>
+ * Usage: {@code java -Xmx1g -cp out:bench-out bench.RegressionGate [--baseline=bench/baseline.json]
+ * [--output=bench-out/results.json] [--throughput-tolerance=0.15] [--p99-tolerance=0.5] [--alloc-tolerance=0.1]
+ * [--update] [--filter=regex] [--warmup=5] [--iterations=10] [--iteration-millis=500]}
+ * <p>
+ * Exits 1 if there's a regression, or a baseline case didn't run without a {@code --filter} to explain it, 0
+ * otherwise. {@code --update} merges the run into the baseline instead of comparing, for when a slowdown is deliberate
+ * or the benchmarks have moved to a different machine; with {@code --filter} only the matching entries are replaced.
+ * Baselines are only comparable with runs on the same hardware and JVM, so the gate warns if those don't match.
+ */
+public class RegressionGate {
+    private static final Pattern RESULT_JSON_PATTERN = Pattern.compile(
+        "\\{"
+        + "\\s*\"name\"\\s*:\\s*\"(?<name>[^\"]*)\"\\s*,"
+        + "\\s*\"opsPerSecond\"\\s*:\\s*(?<opsPerSecond>[\\d.]+)\\s*,"
+        + "\\s*\"opsPerSecondError\"\\s*:\\s*(?<opsPerSecondError>[\\d.]+)\\s*,"
+        + "\\s*\"p50Nanos\"\\s*:\\s*(?<p50Nanos>\\d+)\\s*,"
+        + "\\s*\"p99Nanos\"\\s*:\\s*(?<p99Nanos>\\d+)\\s*,"
+        + "\\s*\"bytesPerOp\"\\s*:\\s*(?<bytesPerOp>[\\d.]+)\\s*"
+        + "}"
+    );
+    private static final Pattern ENVIRONMENT_JSON_PATTERN = Pattern.compile(
+        "\"environment\"\\s*:\\s*\"(?<environment>[^\"]*)\""
+    );
+
+    // allocation counts are exact, but a few bytes come and go with things like string lengths
+    private static final double ALLOC_SLACK_BYTES = 8;
+
+    /**
+     * How far each measurement may get worse, as a fraction of the baseline, before it counts as a regression.
+     * Throughput is the steadiest timing number, p99 the noisiest, and allocation doesn't depend on timing at all.
+     */
+    record Tolerances(double throughput, double p99, double alloc) {}
+
+    record Comparison(String name, Microbench.Result baseline, Microbench.Result current, List<String> regressions) {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Microbench.parseOptions(args);
+        Path baselinePath = Path.of(options.getOrDefault("baseline", "bench/baseline.json"));
+        Path outputPath = Path.of(options.getOrDefault("output", "bench-out/results.json"));
+        Tolerances tolerances = new Tolerances(
+            Double.parseDouble(options.getOrDefault("throughput-tolerance", "0.15")),
+            Double.parseDouble(options.getOrDefault("p99-tolerance", "0.5")),
+            Double.parseDouble(options.getOrDefault("alloc-tolerance", "0.1"))
+        );
+
+        Microbench harness = new Microbench(
+            Integer.parseInt(options.getOrDefault("warmup", "5")),
+            Integer.parseInt(options.getOrDefault("iterations", "10")),
+            Long.parseLong(options.getOrDefault("iteration-millis", "500"))
+        );
+        List<Microbench.Case> cases = Microbench.allCases();
+        Pattern filter = Pattern.compile(options.getOrDefault("filter", ".*"));
+        List<Microbench.Result> results = harness.runAll(cases, filter);
+
+        if (options.containsKey("update")) {
+            List<Microbench.Result> merged = merge(
+                Files.exists(baselinePath) ? parseResults(Files.readString(baselinePath)) : Map.of(), results, cases
+            );
+            writeResults(baselinePath, merged);
+            System.out.printf(
+                "%nWrote %d results (%d from this run) to baseline %s%n", merged.size(), results.size(), baselinePath
+            );
+            System.exit(0);
+        }
+
+        writeResults(outputPath, results);
+        System.out.printf("%nWrote results to %s%n", outputPath);
+
+        if (!Files.exists(baselinePath)) {
+            System.out.printf("No baseline at %s, run with --update to create one%n", baselinePath);
+            System.exit(0);
+        }
+
+        String baselineJson = Files.readString(baselinePath);
+        Matcher environment = ENVIRONMENT_JSON_PATTERN.matcher(baselineJson);
+        if (environment.find() && !environment.group("environment").equals(environment())) {
+            System.out.printf(
+                "WARNING: baseline was recorded on '%s', this is '%s' - timings may not be comparable%n",
+                environment.group("environment"), environment()
+            );
+        }
+
+        Map<String, Microbench.Result> baseline = parseResults(baselineJson);
+        List<Comparison> comparisons = compare(baseline, results, tolerances);
+        boolean regressed = printReport(comparisons, tolerances);
+
+        List<String> missing = missing(baseline, results, filter);
+        if (!missing.isEmpty()) {
+            // a filtered run only checks what it ran, but everything in the baseline is meant to run otherwise
+            boolean filtered = options.containsKey("filter");
+            System.out.printf(
+                "%s%d baseline benchmark(s) didn't run: %s%n",
+                filtered ? "" : "FAILED: ", missing.size(), String.join(", ", missing)
+            );
+            if (!filtered) {
+                System.out.println("If they've been removed or renamed, re-record the baseline with --update.");
+                regressed = true;
+            }
+        }
+        System.exit(regressed ? 1 : 0);
+    }
+
+    /**
+     * @return the baseline with this run's results replacing or added to its entries, minus cases that no longer exist
+     */
+    static List<Microbench.Result> merge(
+        Map<String, Microbench.Result> baseline, List<Microbench.Result> results, List<Microbench.Case> cases
+    ) {
+        Map<String, Microbench.Result> merged = new LinkedHashMap<>(baseline);
+        for (Microbench.Result result : results) {
+            merged.put(result.name(), result);
+        }
+        Set<String> names = new HashSet<>();
+        for (Microbench.Case benchmark : cases) {
+            names.add(benchmark.name());
+        }
+        merged.keySet().retainAll(names);
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * @return names of baseline cases the filter selects that have no result in this run
+     */
+    static List<String> missing(
+        Map<String, Microbench.Result> baseline, List<Microbench.Result> results, Pattern filter
+    ) {
+        Set<String> ran = new HashSet<>();
+        for (Microbench.Result result : results) {
+            ran.add(result.name());
+        }
+        List<String> missing = new ArrayList<>();
+        for (String name : baseline.keySet()) {
+            if (filter.matcher(name).find() && !ran.contains(name)) {
+                missing.add(name);
+            }
+        }
+        return missing;
+    }
+
+    static List<Comparison> compare(
+        Map<String, Microbench.Result> baseline, List<Microbench.Result> results, Tolerances tolerances
+    ) {
+        List<Comparison> comparisons = new ArrayList<>();
+        for (Microbench.Result current : results) {
+            Microbench.Result before = baseline.get(current.name());
+            List<String> regressions = new ArrayList<>();
+            if (before != null) {
+                if (current.opsPerSecond() < before.opsPerSecond() * (1 - tolerances.throughput())) {
+                    regressions.add("throughput");
+                }
+                if (current.p99Nanos() > before.p99Nanos() * (1 + tolerances.p99())) {
+                    regressions.add("p99");
+                }
+                if (current.bytesPerOp() > before.bytesPerOp() * (1 + tolerances.alloc()) + ALLOC_SLACK_BYTES) {
+                    regressions.add("B/op");
+                }
+            }
+            comparisons.add(new Comparison(current.name(), before, current, regressions));
+        }
+        return comparisons;
+    }
+
+    /**
+     * @return whether anything regressed
+     */
+    static boolean printReport(List<Comparison> comparisons, Tolerances tolerances) {
+        System.out.printf(
+            "%nTolerances: throughput -%.0f%%, p99 +%.0f%%, B/op +%.0f%%%n%n",
+            100 * tolerances.throughput(), 100 * tolerances.p99(), 100 * tolerances.alloc()
+        );
+        System.out.printf(
+            "%-36s %26s %26s %24s%n", "benchmark", "ops/s", "p99 ns", "B/op"
+        );
+
+        int regressedCount = 0;
+        for (Comparison comparison : comparisons) {
+            Microbench.Result before = comparison.baseline();
+            Microbench.Result current = comparison.current();
+            if (before == null) {
+                System.out.printf(
+                    "%-36s %26.0f %26d %24.1f   (new, not in baseline)%n",
+                    comparison.name(), current.opsPerSecond(), current.p99Nanos(), current.bytesPerOp()
+                );
+                continue;
+            }
+
+            System.out.printf(
+                "%-36s %26s %26s %24s   %s%n",
+                comparison.name(),
+                change(before.opsPerSecond(), current.opsPerSecond(), "%.0f"),
+                change(before.p99Nanos(), current.p99Nanos(), "%.0f"),
+                change(before.bytesPerOp(), current.bytesPerOp(), "%.1f"),
+                comparison.regressions().isEmpty() ? "ok" : "REGRESSED: " + String.join(", ", comparison.regressions())
+            );
+            if (!comparison.regressions().isEmpty()) {
+                regressedCount++;
+            }
+        }
+
+        System.out.println();
+        if (regressedCount > 0) {
+            System.out.printf(
+                "%d benchmark(s) regressed. If that's intended, re-record the baseline with --update.%n",
+                regressedCount
+            );
+        } else {
+            System.out.println("No regressions :)");
+        }
+        return regressedCount > 0;
+    }
+
+    private static String change(double before, double after, String format) {
+        String percent = before == 0
+            ? (after == 0 ? "+0%" : "new")
+            : String.format("%+.0f%%", 100 * (after - before) / before);
+        return String.format(Locale.ROOT, format + " -> " + format + " %5s", before, after, percent);
+    }
+
+    static Map<String, Microbench.Result> parseResults(String json) {
+        Map<String, Microbench.Result> results = new LinkedHashMap<>();
+        Matcher matcher = RESULT_JSON_PATTERN.matcher(json);
+        while (matcher.find()) {
+            results.put(matcher.group("name"), new Microbench.Result(
+                matcher.group("name"),
+                Double.parseDouble(matcher.group("opsPerSecond")),
+                Double.parseDouble(matcher.group("opsPerSecondError")),
+                Long.parseLong(matcher.group("p50Nanos")),
+                Long.parseLong(matcher.group("p99Nanos")),
+                Double.parseDouble(matcher.group("bytesPerOp"))
+            ));
+        }
+        return results;
+    }
+
+    static void writeResults(Path path, List<Microbench.Result> results) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format("{%n  \"environment\": \"%s\",%n  \"results\": [%n", environment()));
+        for (int i = 0; i < results.size(); i++) {
+            Microbench.Result result = results.get(i);
+            json.append(String.format(
+                Locale.ROOT,
+                """
+                    {"name": "%s", "opsPerSecond": %.1f, "opsPerSecondError": %.1f, \
+                "p50Nanos": %d, "p99Nanos": %d, "bytesPerOp": %.1f}%s
+                """,
+                result.name(), result.opsPerSecond(), result.opsPerSecondError(),
+                result.p50Nanos(), result.p99Nanos(), result.bytesPerOp(),
+                i < results.size() - 1 ? "," : ""
+            ));
+        }
+        json.append("  ]\n}\n");
+
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Files.writeString(path, json);
+    }
+
+    private static String environment() {
+        return String.format(
+            "%d cores, %s %s, %s",
+            Runtime.getRuntime().availableProcessors(),
+            System.getProperty("java.vm.name"), System.getProperty("java.version"), System.getProperty("os.arch")
+        );
+    }
+}
@@ -0,0 +1,166 @@
+package bench;
+
+import http.HTTPServer;
+import http.Response;
+import http.SocketOptions;
+import logging.Level;
+import logging.Log;
+import metrics.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the same load against every combination of TCP_NODELAY, write policy and send buffer size, and prints the
+ * throughput and latency of each, so the settings in the properties file can be picked from numbers rather than
+ * folklore. Each request fetches a body of the given size over a fresh connection.
+ * <p>
+ * Usage: {@code java -cp out:bench-out bench.SocketOptionsBench [bodyBytes] [clients] [seconds] [sendBufferBytes]}
+ * <p>
+ * The non-zero send buffer size gets compared against the OS default. As with {@link AcceptRateBench}, the clients
+ * share the JVM (and cores) with the server, and everything goes over loopback, which has a far bigger MTU and far
+ * smaller round trip than a real network - Nagle's algorithm hurts a lot more over the real thing.
+ */
+public class SocketOptionsBench {
+    private static final byte[] REQUEST = "GET /body HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int FIRST_PORT = 20100;
+
+    private record Outcome(long completed, long errors, Histogram latencies) {}
+
+    public static void main(String[] args) throws Exception {
+        int bodyBytes = args.length > 0 ? Integer.parseInt(args[0]) : 32 * 1024;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int sendBufferBytes = args.length > 3 ? Integer.parseInt(args[3]) : 8 * 1024;
+
+        Log.configure(Level.WARN, 1);
+        Path documentRoot = Files.createTempDirectory("bench-root");
+        String body = "x".repeat(bodyBytes);
+
+        List<SocketOptions> matrix = new ArrayList<>();
+        for (int sendBuffer : new int[] {0, sendBufferBytes}) {
+            for (boolean noDelay : new boolean[] {true, false}) {
+                for (SocketOptions.WritePolicy policy : SocketOptions.WritePolicy.values()) {
+                    matrix.add(new SocketOptions(noDelay, sendBuffer, 0, 0, policy));
+                }
+            }
+        }
+
+        System.out.printf(
+            "%d cores, %d clients, %d byte bodies, %ds per run%n%n",
+            Runtime.getRuntime().availableProcessors(), clients, bodyBytes, seconds
+        );
+        System.out.printf(
+            "%-10s %-10s %8s %10s %10s %10s %10s %7s%n",
+            "nodelay", "policy", "sndbuf", "req/sec", "p50 us", "p99 us", "max us", "errors"
+        );
+
+        // a throwaway round first, or whichever row comes first pays for most of the JIT's work and looks slowest
+        int port = FIRST_PORT;
+        measure(documentRoot, body, SocketOptions.DEFAULT, port++, clients, seconds);
+
+        for (SocketOptions options : matrix) {
+            Outcome outcome = measure(documentRoot, body, options, port++, clients, seconds);
+
+            Histogram.Snapshot latencies = outcome.latencies().snapshot();
+            System.out.printf(
+                "%-10s %-10s %8s %10.0f %10.0f %10.0f %10.0f %7d%n",
+                options.tcpNoDelay(), options.writePolicy(),
+                options.sendBufferBytes() == 0 ? "default" : options.sendBufferBytes(),
+                outcome.completed() / (double) seconds,
+                latencies.valueAtPercentile(50) / 1000.0,
+                latencies.valueAtPercentile(99) / 1000.0,
+                latencies.max() / 1000.0,
+                outcome.errors()
+            );
+        }
+    }
+
+    /**
+     * Starts a server with the given options, warms it up and then measures it.
+     */
+    private static Outcome measure(
+        Path documentRoot, String body, SocketOptions options, int port, int clients, int seconds
+    ) throws InterruptedException {
+        HTTPServer server = new HTTPServer(documentRoot);
+        server.setSocketOptions(options);
+        server.route("GET", "/body", request -> new Response(200, Map.of(), body));
+
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start(port, 1);
+            } catch (IOException e) {
+                System.err.println("Server failed: " + e.getMessage());
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitListening(port);
+
+        run(port, clients, seconds); // warm up
+        Outcome outcome = run(port, clients, seconds);
+        server.stop();
+        return outcome;
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(REQUEST);
+                socket.getInputStream().readAllBytes();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server never started listening on port " + port);
+    }
+
+    private static Outcome run(int port, int clients, int seconds) throws InterruptedException {
+        LongAdder completed = new LongAdder();
+        LongAdder errors = new LongAdder();
+        Histogram latencies = new Histogram();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            Thread.ofVirtual().start(() -> {
+                byte[] buffer = new byte[16 * 1024];
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try (Socket socket = new Socket()) {
+                        socket.connect(new InetSocketAddress("localhost", port));
+                        OutputStream out = socket.getOutputStream();
+                        out.write(REQUEST);
+                        out.flush();
+                        InputStream in = socket.getInputStream();
+                        //noinspection StatementWithEmptyBody
+                        while (in.read(buffer) != -1) {
+                            // server closes the connection once it has responded
+                        }
+                        latencies.record(System.nanoTime() - start);
+                        completed.increment();
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+                done.countDown();
+            });
+        }
+
+        done.await();
+        return new Outcome(completed.sum(), errors.sum(), latencies);
+    }
+}
@@ -0,0 +1,150 @@
+package http;
+
+import bench.Microbench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Microbenchmarks for request parsing, routing and response rendering. Lives in the {@code http} package so it can
+ * get at the package-private parts of the server without them having to be made public.
+ */
+public class HttpBenchmarks {
+    // what curl sends
+    private static final byte[] CURL_REQUEST = """
+        GET /ticketchief/tickets HTTP/1.1\r
+        Host: localhost:8000\r
+        User-Agent: curl/8.5.0\r
+        Accept: */*\r
+        \r
+        """.getBytes(StandardCharsets.UTF_8);
+
+    // what a browser sends when long-polling a queue position, about 750 bytes
+    private static final byte[] BROWSER_REQUEST = """
+        GET /ticketchief/queue/1234?wait=30000&since=17 HTTP/1.1\r
+        Host: snowmon.example.com\r
+        Connection: keep-alive\r
+        sec-ch-ua: "Chromium";v="124", "Google Chrome";v="124", "Not-A.Brand";v="99"\r
+        Accept: application/json\r
+        sec-ch-ua-mobile: ?0\r
+        User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\r
+        sec-ch-ua-platform: "Linux"\r
+        Sec-Fetch-Site: same-origin\r
+        Sec-Fetch-Mode: cors\r
+        Sec-Fetch-Dest: empty\r
+        Referer: https://snowmon.example.com/queue.html\r
+        Accept-Encoding: gzip, deflate, br, zstd\r
+        Accept-Language: en-GB,en-US;q=0.9,en;q=0.8\r
+        Cookie: session=8f14e45fceea167a5a36dedd4bea2543; theme=dark\r
+        traceparent: 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01\r
+        \r
+        """.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] PURCHASE_REQUEST = """
+        POST /ticketchief/queue HTTP/1.1\r
+        Host: localhost:8000\r
+        Accept: application/json\r
+        Content-Type: application/json\r
+        X-Nonce: 3f2504e0-4f89-11d3-9a0c-0305e82c3301\r
+        Content-Length: 27\r
+        \r
+        {"eventId": 3, "tickets": 2}""".getBytes(StandardCharsets.UTF_8);
+
+    public static List<Microbench.Case> cases() throws Exception {
+        HTTPServer server = new HTTPServer(Path.of("public"));
+        // same shape of route table as Main registers
+        Response ok = new Response(200, Map.of("Content-Type", "application/json"), "{}");
+        Function<Request, Response> handler = request -> ok;
+        server.route("GET", "/snowmon", handler);
+        server.route("GET", "/metrics", handler);
+        server.route("GET", "/metrics/latency", handler);
+        server.route("GET", "/ticketchief/tickets", handler);
+        server.route("GET", "/ticketchief/tickets/:id", handler);
+        server.route("POST", "/ticketchief/tickets/:id/refund", handler);
+        server.route("POST", "/ticketchief/queue", handler);
+        server.route("GET", "/ticketchief/queue/:id", handler);
+        server.route("DELETE", "/ticketchief/queue/:id", handler);
+
+        List<Microbench.Case> cases = new ArrayList<>();
+
+        cases.add(new Microbench.Case("http.parse.curl", () -> parse(server, CURL_REQUEST)));
+        cases.add(new Microbench.Case("http.parse.browser", () -> parse(server, BROWSER_REQUEST)));
+        cases.add(new Microbench.Case("http.parse.post", () -> {
+            try (RequestReader in = reader(server, PURCHASE_REQUEST)) {
+                Request request = server.parseRequestHead(in);
+                server.parseBody(in, request, server.findRoute(request));
+                return request;
+            }
+        }));
+
+        Route queueRoute = new Route("GET", "/ticketchief/queue/:id");
+        Request pollRequest = parse(server, BROWSER_REQUEST);
+        cases.add(new Microbench.Case("http.route.matches", () -> queueRoute.matches(pollRequest)));
+        cases.add(new Microbench.Case("http.route.request", () -> {
+            Request request = new Request("GET", "/ticketchief/queue/1234", Map.of(), "");
+            return server.routeRequest(request, new Exchange(System.nanoTime()));
+        }));
+
+        // about the size of the real catalogue response
+        String catalogue = "{\"count\": 250, \"artist\": \"Radiohead\", \"venue\": \"O2 Academy Glasgow\"},\n".repeat(16);
+        Response catalogueResponse = new Response(200, Map.of("Content-Type", "application/json"), catalogue);
+        cases.add(new Microbench.Case("http.response.render", catalogueResponse::render));
+        cases.add(new Microbench.Case("http.response.encode", () ->
+            new Response(200, Map.of("Content-Type", "application/json"), catalogue).encode()
+        ));
+
+        Request apiRequest = new Request("GET", "/nope", Map.of("Accept", "application/json"), "");
+        cases.add(new Microbench.Case("http.httpCatResponse.html", () -> Response.HttpCatResponse(404)));
+        cases.add(new Microbench.Case("http.httpCatResponse.json", () -> Response.HttpCatResponse(404, apiRequest)));
+
+        return cases;
+    }
+
+    private static Request parse(HTTPServer server, byte[] bytes) throws Exception {
+        try (RequestReader in = reader(server, bytes)) {
+            return server.parseRequestHead(in);
+        }
+    }
+
+    private static RequestReader reader(HTTPServer server, byte[] bytes) {
+        return new RequestReader(new BytesChannel(bytes), server.bufferPool());
+    }
+
+    /**
+     * Stands in for a socket. {@link java.nio.channels.Channels#newChannel} would do, but allocates a buffer of its
+     * own on every read, which would drown out what's being measured.
+     */
+    private static final class BytesChannel implements ReadableByteChannel {
+        private final ByteBuffer source;
+
+        private BytesChannel(byte[] bytes) {
+            this.source = ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public int read(ByteBuffer destination) {
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(destination.remaining(), source.remaining());
+            destination.put(destination.position(), source, source.position(), count);
+            destination.position(destination.position() + count);
+            source.position(source.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -2,17 +2,53 @@ import events.Event;
 import events.Events;
 import events.InvalidEventException;
 import events.PurchaseManager;
+import http.BufferPool;
+import http.ConnectionStats;
 import http.HTTPServer;
+import http.HandlerPool;
+import http.HostnameResolver;
+import http.RateLimiter;
+import http.Request;
+import http.RequestCoalescer;
+import http.RequestLimits;
 import http.Response;
+import http.ResponseCache;
+import http.RouteTable;
+import http.SocketOptions;
+import http.TLSConfig;
+import http.TrustedProxies;
+import logging.AccessLog;
+import logging.Level;
+import logging.Log;
+import metrics.JvmCollector;
+import metrics.MetricsRegistry;
+import metrics.PrometheusWriter;
+import metrics.RequestCounters;
+import metrics.RouteLatencies;
+import tracing.OtlpFileExporter;
+import tracing.Tracer;
+import utils.ConfigWatcher;
 import utils.NonceManager;
 import utils.PropertiesReader;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,16 +68,114 @@ public class Main {
         + "\\s*}\\s*"
     );
 
+    private static final String PROPERTIES_FILE = "cs2003-C3.properties";
+
+    /**
+     * Clients listed by /metrics/connections, busiest first.
+     */
+    private static final int BUSIEST_CLIENTS_LISTED = 20;
+
+    /**
+     * Everything in the properties file that can be changed without a restart, read in one go so that a reload swaps
+     * them all together.
+     */
+    private record Tunables(
+        Level logLevel,
+        int logSampleRate,
+        RequestLimits requestLimits,
+        SocketOptions socketOptions,
+        TrustedProxies trustedProxies,
+        int handlerPoolMinThreads,
+        int handlerPoolMaxThreads,
+        Duration snowmonCacheTtl,
+        Duration ticketsCacheTtl,
+        long maxLongPollMillis,
+        double purchaseRateLimitPerSecond,
+        int purchaseRateLimitBurst,
+        int rateLimitMaxClients,
+        String adminToken
+    ) {
+        static final Set<String> KEYS = Set.of(
+            "logLevel", "logSampleRate",
+            "maxRequestLineBytes", "maxHeaderCount", "maxHeaderBytes", "maxBodyBytes", "bodySpoolThresholdBytes",
+            "tcpNoDelay", "socketSendBufferBytes", "writePolicy", "trustedProxies",
+            "handlerPoolMinThreads", "handlerPoolMaxThreads",
+            "snowmonCacheMillis", "ticketsCacheMillis", "maxLongPollMillis",
+            "purchaseRateLimitPerSecond", "purchaseRateLimitBurst", "rateLimitMaxClients", "adminToken"
+        );
+
+        static Tunables read(PropertiesReader properties) {
+            return new Tunables(
+                Level.parse(properties.getStringProperty("logLevel", "INFO"), Level.INFO),
+                properties.getIntProperty("logSampleRate", 10),
+
+                // caps on request sizes, anything bigger gets turned away before it's buffered
+                new RequestLimits(
+                    properties.getIntProperty("maxRequestLineBytes", RequestLimits.DEFAULT.maxRequestLineBytes()),
+                    properties.getIntProperty("maxHeaderCount", RequestLimits.DEFAULT.maxHeaderCount()),
+                    properties.getIntProperty("maxHeaderBytes", RequestLimits.DEFAULT.maxHeaderBytes()),
+                    properties.getIntProperty("maxBodyBytes", RequestLimits.DEFAULT.maxBodyBytes()),
+                    properties.getIntProperty("bodySpoolThresholdBytes", RequestLimits.DEFAULT.spoolThresholdBytes())
+                ),
+
+                // TCP tuning, where 0 leaves the OS to pick
+                new SocketOptions(
+                    properties.getBooleanProperty("tcpNoDelay", SocketOptions.DEFAULT.tcpNoDelay()),
+                    properties.getIntProperty("socketSendBufferBytes", 0),
+                    properties.getIntProperty("socketReceiveBufferBytes", 0),
+                    properties.getIntProperty("listenBacklog", 0),
+                    SocketOptions.WritePolicy.parse(
+                        properties.getStringProperty("writePolicy", "COALESCE"), SocketOptions.DEFAULT.writePolicy()
+                    )
+                ),
+
+                // proxies whose forwarding headers say who the client is, blank for none. set per deployment, as
+                // trusting the wrong range lets clients pick their own address
+                TrustedProxies.parse(Objects.requireNonNullElse(
+                    System.getenv("SNOWMON_TRUSTED_PROXIES"), properties.getStringProperty("trustedProxies", "")
+                )),
+
+                // 0 max for one thread per core
+                properties.getIntProperty("handlerPoolMinThreads", 1),
+                properties.getIntProperty("handlerPoolMaxThreads", 0),
+
+                // how long hot GET responses are reused for, 0 to always run the handler
+                Duration.ofMillis(properties.getIntProperty("snowmonCacheMillis", 1000)),
+                Duration.ofMillis(properties.getIntProperty("ticketsCacheMillis", 250)),
+
+                properties.getIntProperty("maxLongPollMillis", 30_000),
+
+                properties.getDoubleProperty("purchaseRateLimitPerSecond", 1),
+                properties.getIntProperty("purchaseRateLimitBurst", 5),
+                properties.getIntProperty("rateLimitMaxClients", 65536),
+
+                // lets the metrics routes be fetched from somewhere other than the machine itself, blank to not
+                Objects.requireNonNullElse(
+                    System.getenv("SNOWMON_ADMIN_TOKEN"), properties.getStringProperty("adminToken", "")
+                ).strip()
+            );
+        }
+
+        boolean sameRateLimit(Tunables other) {
+            return purchaseRateLimitPerSecond == other.purchaseRateLimitPerSecond
+                && purchaseRateLimitBurst == other.purchaseRateLimitBurst
+                && rateLimitMaxClients == other.rateLimitMaxClients;
+        }
+    }
+
     public static void main(String[] args) {
         // read config with fallback values
         PropertiesReader properties;
         try {
-            properties = new PropertiesReader("cs2003-C3.properties");
+            properties = new PropertiesReader(PROPERTIES_FILE);
         } catch (IOException e) {
             System.err.println("Failed to read cs2003-C3.properties file: " + e.getMessage());
             return;
         }
 
+        Tunables tunables = Tunables.read(properties);
+        Log.configure(tunables.logLevel(), tunables.logSampleRate());
+
         int port = properties.getIntProperty("serverPort", 8000);
         Path documentRoot = Paths.get(properties.getStringProperty("documentRoot", "public"));
         Path eventsPath = Paths.get(properties.getStringProperty("eventsPath", "tickets.json"));
@@ -54,21 +188,150 @@ public class Main {
             return;
         }
 
+        // request tracing, disabled if no trace file is configured
+        String traceFile = properties.getStringProperty("traceFile", "");
+        if (!traceFile.isBlank()) {
+            try {
+                Tracer.configure(
+                    new OtlpFileExporter(Paths.get(traceFile), "snowmon"),
+                    properties.getIntProperty("traceSamplePercent", 100) / 100.0
+                );
+            } catch (IOException e) {
+                System.err.println("Failed to open trace file: " + e.getMessage());
+            }
+        }
+
         // init server
         HTTPServer server = new HTTPServer(documentRoot);
-        registerSnowMonRoutes(server);
-        registerTicketChiefRoutes(server, new PurchaseManager(events));
+
+        // native TLS termination, for when there's no edge proxy doing it for us
+        String tlsCertificate = properties.getStringProperty("tlsCertificate", "");
+        if (!tlsCertificate.isBlank()) {
+            String tlsPrivateKey = properties.getStringProperty("tlsPrivateKey", "");
+            try {
+                server.useTLS(TLSConfig.load(
+                    Paths.get(tlsCertificate),
+                    tlsPrivateKey.isBlank() ? null : Paths.get(tlsPrivateKey),
+                    properties.getStringProperty("tlsKeystorePassword", ""),
+                    properties.getIntProperty("tlsSessionCacheSize", 10000),
+                    properties.getIntProperty("tlsSessionTimeoutSeconds", 3600)
+                ));
+            } catch (IOException | GeneralSecurityException e) {
+                System.err.println("Failed to load TLS certificate: " + e.getMessage());
+                return;
+            }
+        }
+
+        // client hostnames are looked up in the background and logged when they turn up, 0 threads to skip it
+        int reverseDnsThreads = properties.getIntProperty("reverseDnsThreads", 2);
+        if (reverseDnsThreads > 0) {
+            server.resolveHostnames(new HostnameResolver(
+                reverseDnsThreads,
+                properties.getIntProperty("reverseDnsQueueSize", 256),
+                Duration.ofSeconds(properties.getIntProperty("reverseDnsCacheSeconds", 3600)),
+                Duration.ofMillis(properties.getIntProperty("reverseDnsTimeoutMillis", 2000)),
+                properties.getIntProperty("reverseDnsMaxCached", 10000)
+            ));
+        }
+
+        // threads for CPU-bound handlers, resized between these bounds to fit the load
+        server.useHandlerPool(new HandlerPool(tunables.handlerPoolMinThreads(), tunables.handlerPoolMaxThreads()));
+        applyTunables(server, tunables);
+
+        // for a dashboard served from somewhere else, disabled if no origin is configured
+        String corsAllowOrigin = properties.getStringProperty("corsAllowOrigin", "");
+        if (!corsAllowOrigin.isBlank()) {
+            server.allowCORS(corsAllowOrigin, "Accept", "Content-Type", "X-Nonce", "traceparent");
+        }
+
+        // binary access log, disabled if no directory is configured
+        String accessLogDir = properties.getStringProperty("accessLogDir", "");
+        if (!accessLogDir.isBlank()) {
+            try {
+                server.observe(new AccessLog(
+                    Paths.get(accessLogDir),
+                    properties.getIntProperty("accessLogFileMegabytes", 16) * 1024 * 1024,
+                    properties.getIntProperty("accessLogMaxFiles", 8)
+                ));
+            } catch (IOException e) {
+                System.err.println("Failed to open access log: " + e.getMessage());
+            }
+        }
+
+        PurchaseManager purchaseManager = new PurchaseManager(events);
+        // Nonce manager for replay attack prevention (Part 3 security)
+        NonceManager nonceManager = new NonceManager();
+
+        RouteLatencies latencies = new RouteLatencies();
+        RequestCounters requestCounters = new RequestCounters();
+        server.observe(latencies);
+        server.observe(requestCounters);
+
+        // every queued purchase costs a thread and a hefty allocation, so clients only get so many
+        AtomicReference<RateLimiter> purchaseLimiter = new AtomicReference<>(purchaseLimiter(tunables));
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.register(requestCounters);
+        metrics.register(latencies);
+        metrics.register(writer -> collectServerMetrics(writer, server, purchaseManager, nonceManager));
+        metrics.register(new JvmCollector());
+        metrics.register(writer -> {
+            RateLimiter limiter = purchaseLimiter.get();
+            if (limiter != null) {
+                collectRateLimitMetrics(writer, limiter);
+            }
+        });
+
+        // the route table is rebuilt from scratch on reload, as cache TTLs and rate limits are baked into the routes
+        Function<Tunables, RouteTable> buildRoutes = settings -> {
+            RouteTable routes = new RouteTable();
+            registerSnowMonRoutes(routes, settings.snowmonCacheTtl());
+            registerAdminRoutes(routes, server, latencies, metrics, settings.adminToken());
+            registerTicketChiefRoutes(
+                routes, purchaseManager, nonceManager, settings.ticketsCacheTtl(), purchaseLimiter.get(),
+                settings.maxLongPollMillis()
+            );
+            return routes;
+        };
+        server.replaceRoutes(buildRoutes.apply(tunables));
+
+        // picks up edits to the properties file without a restart, 0 to only ever read it at startup
+        int configReloadSeconds = properties.getIntProperty("configReloadSeconds", 5);
+        if (configReloadSeconds > 0) {
+            AtomicReference<Tunables> current = new AtomicReference<>(tunables);
+            new ConfigWatcher(
+                Paths.get(PROPERTIES_FILE), properties, Duration.ofSeconds(configReloadSeconds),
+                (reloaded, changed) -> {
+                    Tunables previous = current.get();
+                    Tunables next = Tunables.read(reloaded);
+                    applyTunables(server, next);
+                    if (!next.sameRateLimit(previous)) {
+                        // client buckets start afresh, which at worst lets everyone have one more burst
+                        purchaseLimiter.set(purchaseLimiter(next));
+                    }
+                    server.replaceRoutes(buildRoutes.apply(next));
+                    current.set(next);
+
+                    Log.info("Reloaded %s, changed: %s", PROPERTIES_FILE, String.join(", ", changed));
+                    for (String key : changed) {
+                        if (!Tunables.KEYS.contains(key)) {
+                            Log.warn("%s changed, but only takes effect on restart", key);
+                        }
+                    }
+                }
+            );
+        }
 
         try {
-            server.start(port);
+            server.start(port, properties.getIntProperty("acceptorThreads", 1));
         } catch (Exception e) {
             System.err.printf("Fatal server error: %s: %s%n", e.getClass().getName(), e.getMessage());
         }
     }
 
-    public static void registerSnowMonRoutes(HTTPServer server) {
+    public static void registerSnowMonRoutes(RouteTable routes, Duration cacheTtl) {
         // GET /snowmon
-        server.route("GET", "/snowmon", request -> new Response(
+        routes.route("GET", "/snowmon", request -> new Response(
             200,
             Map.of("Content-Type", "application/json"),
             String.format(
@@ -79,24 +342,282 @@ public class Main {
                 """.trim(),
                 (double) (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / Runtime.getRuntime().maxMemory()
             )
-        ));
+        )).cache(cacheTtl).coalesce();
     }
 
-    private static void registerTicketChiefRoutes(HTTPServer server, PurchaseManager purchaseManager) {
-        // Nonce manager for replay attack prevention (Part 3 security)
-        NonceManager nonceManager = new NonceManager();
+    /**
+     * Applies the settings that live on the server itself rather than in the routes. The listen backlog and receive
+     * buffer are read again too, but only matter to listening sockets opened afterwards.
+     */
+    private static void applyTunables(HTTPServer server, Tunables tunables) {
+        Log.configure(tunables.logLevel(), tunables.logSampleRate());
+        server.setRequestLimits(tunables.requestLimits());
+        server.setSocketOptions(tunables.socketOptions());
+        server.trustProxies(tunables.trustedProxies());
+        // debug builds get told about connection buffers that are never handed back to the pool
+        server.bufferPool().setLeakDetection(tunables.logLevel() == Level.DEBUG);
+        server.handlerPool().resize(tunables.handlerPoolMinThreads(), tunables.handlerPoolMaxThreads());
+    }
+
+    /**
+     * @return the rate limiter for queueing purchases, or null if they aren't rate limited
+     */
+    private static RateLimiter purchaseLimiter(Tunables tunables) {
+        if (tunables.purchaseRateLimitPerSecond() <= 0) {
+            return null;
+        }
+        return new RateLimiter(
+            tunables.purchaseRateLimitPerSecond(), tunables.purchaseRateLimitBurst(), tunables.rateLimitMaxClients()
+        );
+    }
+
+    private static void collectServerMetrics(
+        PrometheusWriter writer, HTTPServer server, PurchaseManager purchaseManager, NonceManager nonceManager
+    ) {
+        writer.family("snowmon_http_open_connections", "gauge", "Connections accepted and not yet closed.")
+            .sample("snowmon_http_open_connections", server.openConnections());
+        collectConnectionMetrics(writer, server.connectionStats());
+
+        ResponseCache cache = server.responseCache();
+        writer.family("snowmon_http_response_cache_entries", "gauge", "Responses currently cached.")
+            .sample("snowmon_http_response_cache_entries", cache.size());
+        writer.family("snowmon_http_response_cache_lookups_total", "counter", "Cached route lookups, by outcome.")
+            .sample("snowmon_http_response_cache_lookups_total", cache.hits(), "result", "hit")
+            .sample("snowmon_http_response_cache_lookups_total", cache.misses(), "result", "miss")
+            .sample("snowmon_http_response_cache_lookups_total", cache.coalesced(), "result", "coalesced");
+
+        RequestCoalescer coalescer = server.requestCoalescer();
+        writer.family("snowmon_http_coalesced_requests_total", "counter", "Uncached requests to coalesced routes.")
+            .sample("snowmon_http_coalesced_requests_total", coalescer.leaders(), "result", "leader")
+            .sample("snowmon_http_coalesced_requests_total", coalescer.followers(), "result", "follower");
+
+        BufferPool buffers = server.bufferPool();
+        writer.family("snowmon_buffer_pool_buffers", "gauge", "Pooled direct buffers, by size and whether borrowed.");
+        for (BufferPool.SizeClass sizeClass : buffers.sizeClasses()) {
+            String size = Integer.toString(sizeClass.bufferSize());
+            writer.sample("snowmon_buffer_pool_buffers", sizeClass.pooled(), "size", size, "state", "idle")
+                .sample("snowmon_buffer_pool_buffers", sizeClass.leased(), "size", size, "state", "leased");
+        }
+        writer.family("snowmon_buffer_pool_acquires_total", "counter", "Buffers borrowed, by size and where from.");
+        for (BufferPool.SizeClass sizeClass : buffers.sizeClasses()) {
+            String size = Integer.toString(sizeClass.bufferSize());
+            writer.sample("snowmon_buffer_pool_acquires_total", sizeClass.reused(), "size", size, "source", "pool")
+                .sample("snowmon_buffer_pool_acquires_total", sizeClass.allocated(), "size", size, "source", "new");
+        }
+        writer.family("snowmon_buffer_pool_oversized_total", "counter", "Buffers too big to pool, allocated anyway.")
+            .sample("snowmon_buffer_pool_oversized_total", buffers.oversized());
+        writer.family("snowmon_buffer_pool_leaks_total", "counter", "Buffers collected without being released.")
+            .sample("snowmon_buffer_pool_leaks_total", buffers.leaks());
+
+        HandlerPool handlerPool = server.handlerPool();
+        if (handlerPool != null) {
+            collectHandlerPoolMetrics(writer, handlerPool);
+        }
+
+        HostnameResolver hostnames = server.hostnameResolver();
+        if (hostnames != null) {
+            writer.family("snowmon_reverse_dns_cached", "gauge", "Client hostnames remembered.")
+                .sample("snowmon_reverse_dns_cached", hostnames.cachedEntries());
+            writer.family("snowmon_reverse_dns_requests_total", "counter", "Hostname requests, by outcome.")
+                .sample("snowmon_reverse_dns_requests_total", hostnames.hits(), "result", "cached")
+                .sample("snowmon_reverse_dns_requests_total", hostnames.lookups(), "result", "lookup")
+                .sample("snowmon_reverse_dns_requests_total", hostnames.rejected(), "result", "rejected");
+            writer.family("snowmon_reverse_dns_timeouts_total", "counter", "Hostnames not found in time.")
+                .sample("snowmon_reverse_dns_timeouts_total", hostnames.timeouts());
+        }
+
+        writer.family("snowmon_purchase_queue_depth", "gauge", "Purchase requests waiting in the queue.")
+            .sample("snowmon_purchase_queue_depth", purchaseManager.getQueueDepth());
+        writer.family("snowmon_purchase_enqueuer_threads", "gauge", "Requests still waiting to join the queue.")
+            .sample("snowmon_purchase_enqueuer_threads", purchaseManager.getEnqueuerCount());
+        writer.family("snowmon_purchase_processor_threads", "gauge", "Live payment processor threads.")
+            .sample("snowmon_purchase_processor_threads", purchaseManager.getProcessorCount());
+
+        // event IDs are list indices, same as in the API
+        List<Event> events = purchaseManager.getEvents();
+        writer.family("snowmon_tickets_sold_total", "counter", "Tickets sold since startup, by event.");
+        for (int id = 0; id < events.size(); id++) {
+            Event event = events.get(id);
+            writer.sample("snowmon_tickets_sold_total", event.getTicketsSold(), "event", Integer.toString(id));
+        }
+        writer.family("snowmon_tickets_refunded_total", "counter", "Tickets refunded since startup, by event.");
+        for (int id = 0; id < events.size(); id++) {
+            Event event = events.get(id);
+            writer.sample("snowmon_tickets_refunded_total", event.getTicketsRefunded(), "event", Integer.toString(id));
+        }
+        writer.family("snowmon_tickets_available", "gauge", "Tickets still available, by event.");
+        for (int id = 0; id < events.size(); id++) {
+            Event event = events.get(id);
+            writer.sample("snowmon_tickets_available", event.getTicketCount(), "event", Integer.toString(id));
+        }
+
+        writer.family("snowmon_nonces_stored", "gauge", "Used nonces remembered for replay protection.")
+            .sample("snowmon_nonces_stored", nonceManager.size());
+
+        writer.family("snowmon_log_dropped_total", "counter", "Log records dropped because the log buffer was full.")
+            .sample("snowmon_log_dropped_total", Log.droppedCount());
+    }
 
+    private static void collectConnectionMetrics(PrometheusWriter writer, ConnectionStats stats) {
+        writer.family("snowmon_http_connections_total", "counter", "Connections opened since startup.")
+            .sample("snowmon_http_connections_total", stats.connections());
+        writer.family("snowmon_http_connection_requests_total", "counter", "Requests answered on closed connections.")
+            .sample("snowmon_http_connection_requests_total", stats.requests());
+        writer.family("snowmon_http_connection_bytes_total", "counter", "Bytes over closed connections, by direction.")
+            .sample("snowmon_http_connection_bytes_total", stats.bytesRead(), "direction", "read")
+            .sample("snowmon_http_connection_bytes_total", stats.bytesWritten(), "direction", "written");
+        writer.family("snowmon_http_connection_clients", "gauge", "Client addresses with connection counts kept.")
+            .sample("snowmon_http_connection_clients", stats.trackedClients());
+
+        // per-client counts stay on /metrics/connections, as addresses would make for unbounded label values
+        String name = "snowmon_http_connection_duration_seconds";
+        writer.family(name, "histogram", "How long connections stayed open, from accept to close.");
+        double[] bounds = ConnectionStats.lifetimeBucketSeconds();
+        long[] counts = new long[bounds.length];
+        long closed = stats.lifetimeCounts(counts);
+        for (int i = 0; i < bounds.length; i++) {
+            writer.sample(name + "_bucket", counts[i], "le", PrometheusWriter.bucketBound(bounds[i]));
+        }
+        writer.sample(name + "_bucket", closed, "le", "+Inf")
+            .sample(name + "_sum", stats.lifetimeNanos() / (double) TimeUnit.SECONDS.toNanos(1))
+            .sample(name + "_count", closed);
+    }
+
+    private static void collectHandlerPoolMetrics(PrometheusWriter writer, HandlerPool pool) {
+        writer.family("snowmon_handler_pool_threads", "gauge", "Threads the handler pool is sized for.")
+            .sample("snowmon_handler_pool_threads", pool.size());
+        writer.family("snowmon_handler_pool_target_threads", "gauge", "Threads the last second's load called for.")
+            .sample("snowmon_handler_pool_target_threads", pool.targetSize());
+        writer.family("snowmon_handler_pool_bound_threads", "gauge", "Configured limits on the handler pool's size.")
+            .sample("snowmon_handler_pool_bound_threads", pool.minSize(), "bound", "min")
+            .sample("snowmon_handler_pool_bound_threads", pool.maxSize(), "bound", "max");
+        writer.family("snowmon_handler_pool_active_threads", "gauge", "Handler pool threads running a handler.")
+            .sample("snowmon_handler_pool_active_threads", pool.activeThreads());
+        writer.family("snowmon_handler_pool_queued", "gauge", "CPU-bound handlers waiting for a thread.")
+            .sample("snowmon_handler_pool_queued", pool.queued());
+        writer.family("snowmon_handler_pool_resizes_total", "counter", "Handler pool resizes, by direction.")
+            .sample("snowmon_handler_pool_resizes_total", pool.timesGrown(), "direction", "grow")
+            .sample("snowmon_handler_pool_resizes_total", pool.timesShrunk(), "direction", "shrink");
+
+        // the inputs to Little's law, per kind of handler
+        HandlerPool.Workload[] workloads = HandlerPool.Workload.values();
+        writer.family("snowmon_handler_calls_total", "counter", "Handlers run, by workload.");
+        for (HandlerPool.Workload workload : workloads) {
+            writer.sample("snowmon_handler_calls_total", pool.stats(workload).handled(), "workload", label(workload));
+        }
+        writer.family("snowmon_handler_arrival_rate", "gauge", "Handler calls per second over the last second.");
+        for (HandlerPool.Workload workload : workloads) {
+            writer.sample(
+                "snowmon_handler_arrival_rate", pool.stats(workload).arrivalRate(), "workload", label(workload)
+            );
+        }
+        writer.family("snowmon_handler_service_seconds", "gauge", "Mean handler run time over the last second.");
+        for (HandlerPool.Workload workload : workloads) {
+            writer.sample(
+                "snowmon_handler_service_seconds", pool.stats(workload).meanServiceNanos() / 1e9,
+                "workload", label(workload)
+            );
+        }
+        writer.family("snowmon_handler_concurrency", "gauge", "Mean handlers running at once over the last second.");
+        for (HandlerPool.Workload workload : workloads) {
+            writer.sample(
+                "snowmon_handler_concurrency", pool.stats(workload).concurrency(), "workload", label(workload)
+            );
+        }
+    }
+
+    private static String label(HandlerPool.Workload workload) {
+        return workload.name().toLowerCase();
+    }
+
+    private static void collectRateLimitMetrics(PrometheusWriter writer, RateLimiter purchaseLimiter) {
+        writer.family("snowmon_http_rate_limit_decisions_total", "counter", "Rate limited requests, by outcome.")
+            .sample(
+                "snowmon_http_rate_limit_decisions_total", purchaseLimiter.allowed(),
+                "limiter", "purchase", "result", "allowed"
+            )
+            .sample(
+                "snowmon_http_rate_limit_decisions_total", purchaseLimiter.rejected(),
+                "limiter", "purchase", "result", "rejected"
+            );
+        writer.family("snowmon_http_rate_limit_clients", "gauge", "Clients with a rate limit bucket in memory.")
+            .sample("snowmon_http_rate_limit_clients", purchaseLimiter.trackedKeys(), "limiter", "purchase");
+    }
+
+    /**
+     * @param adminToken bearer token that lets other machines in, blank for loopback only
+     */
+    private static void registerAdminRoutes(
+        RouteTable routes, HTTPServer server, RouteLatencies latencies, MetricsRegistry metrics, String adminToken
+    ) {
+        // client addresses and the server's insides aren't for the whole internet
+        Predicate<Request> isAdmin = request -> isAdmin(request, adminToken);
+
+        // GET /metrics
+        routes.route("GET", "/metrics", request -> new Response(
+            200,
+            Map.of("Content-Type", MetricsRegistry.CONTENT_TYPE),
+            metrics.scrape()
+        )).require(isAdmin, 403);
+
+        // GET /metrics/connections
+        routes.route("GET", "/metrics/connections", request -> new Response(
+            200,
+            Map.of("Content-Type", "application/json"),
+            server.connectionStats().toJSON(server.openConnections(), BUSIEST_CLIENTS_LISTED)
+        )).require(isAdmin, 403);
+
+        // GET /metrics/latency
+        routes.route("GET", "/metrics/latency", request -> new Response(
+            200,
+            Map.of("Content-Type", "application/json"),
+            latencies.toJSON()
+        )).require(isAdmin, 403);
+    }
+
+    /**
+     * Admin requests either come from the machine itself, or carry {@code Authorization: Bearer <adminToken>}.
+     */
+    private static boolean isAdmin(Request request, String adminToken) {
+        String authorization = request.headers().get("Authorization");
+        // compared in constant time, so the token can't be guessed a byte at a time
+        if (!adminToken.isEmpty() && authorization != null && MessageDigest.isEqual(
+            authorization.getBytes(StandardCharsets.UTF_8), ("Bearer " + adminToken).getBytes(StandardCharsets.UTF_8)
+        )) {
+            return true;
+        }
+
+        // forwarded addresses are already the real client's, so a proxy on this machine doesn't count as local
+        String address = request.clientAddress();
+        try {
+            return address != null && InetAddress.getByName(address).isLoopbackAddress(); // a literal, no DNS lookup
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param maxLongPollMillis upper bound on how long a long-polling queue status request may park for
+     */
+    private static void registerTicketChiefRoutes(
+        RouteTable routes,
+        PurchaseManager purchaseManager,
+        NonceManager nonceManager,
+        Duration cacheTtl,
+        RateLimiter purchaseLimiter,
+        long maxLongPollMillis
+    ) {
         // GET /ticketchief/tickets
-        server.route("GET", "/ticketchief/tickets", request -> new Response(
+        routes.route("GET", "/ticketchief/tickets", request -> new Response(
             200,
             Map.of("Content-Type", "application/json"),
             purchaseManager.getEventsAsJson()
-        ));
+        )).cache(cacheTtl).coalesce();
 
         // GET /ticketchief/tickets/:id
-        server.route("GET", "/ticketchief/tickets/:id", request -> {
+        routes.route("GET", "/ticketchief/tickets/:id", request -> {
             if (!"application/json".equals(request.headers().get("Accept"))) {
-                return Response.HttpCatResponse(406); // Not Acceptable
+                return Response.HttpCatResponse(406, request); // Not Acceptable
             }
 
             try {
@@ -106,24 +627,15 @@ public class Main {
                     purchaseManager.getEvent(request.getRouteParam("id")).toJSON()
                 );
             } catch (InvalidEventException e) {
-                return Response.HttpCatResponse(404); // Not Found
+                return Response.HttpCatResponse(404, request); // Not Found
             }
-        });
+        }).cache(cacheTtl, "Accept").coalesce("Accept");
 
         // POST /ticketchief/tickets/:id/refund
-        server.route("POST", "/ticketchief/tickets/:id/refund", request -> {
-            // Validate nonce for replay attack prevention
-            if (!nonceManager.validateNonce(request.headers().get("X-Nonce"))) {
-                return Response.HttpCatResponse(400); // Bad Request (missing or reused nonce)
-            }
-
-            if (!"application/json".equals(request.headers().get("Content-Type"))) {
-                return Response.HttpCatResponse(415); // Unsupported Media Type
-            }
-
+        routes.route("POST", "/ticketchief/tickets/:id/refund", request -> {
             Matcher matcher = REFUND_JSON_PATTERN.matcher(request.body());
             if (!matcher.find()) { // invalid JSON
-                return Response.HttpCatResponse(400); // Bad Request
+                return Response.HttpCatResponse(400, request); // Bad Request
             }
             String arrayContents = matcher.group("ticketIds");
             // this is sooo janky but good enough for the purposes of the "json parsing" of this assignment
@@ -135,50 +647,42 @@ public class Main {
             try {
                 event = purchaseManager.getEvent(request.getRouteParam("id"));
             } catch (InvalidEventException e) {
-                return Response.HttpCatResponse(404); // Not Found
+                return Response.HttpCatResponse(404, request); // Not Found
             }
 
             if (!event.refundTickets(ticketIds)) {
                 // in the current implementation of refundTickets this will never happen
                 // but hey, I'm Forward-Thinking™ !!!
-                return Response.HttpCatResponse(422); // Unprocessable Entity
+                return Response.HttpCatResponse(422, request); // Unprocessable Entity
             }
 
-            return Response.HttpCatResponse(204); // No Content
-        });
+            return Response.HttpCatResponse(204, request); // No Content
+        })
+            // header checks run before the body is read
+            // Bad Request (missing or reused nonce)
+            .require(request -> nonceManager.validateNonce(request.headers().get("X-Nonce")), 400)
+            // Unsupported Media Type
+            .require(request -> "application/json".equals(request.headers().get("Content-Type")), 415);
 
         // POST /ticketchief/queue
-        server.route("POST", "/ticketchief/queue", request -> {
-            // Validate nonce for replay attack prevention
-            if (!nonceManager.validateNonce(request.headers().get("X-Nonce"))) {
-                return Response.HttpCatResponse(400); // Bad Request (missing or reused nonce)
-            }
-
-            if (!"application/json".equals(request.headers().get("Accept"))) {
-                return Response.HttpCatResponse(406); // Not Acceptable
-            }
-
-            if (!"application/json".equals(request.headers().get("Content-Type"))) {
-                return Response.HttpCatResponse(415); // Unsupported Media Type
-            }
-
+        routes.route("POST", "/ticketchief/queue", request -> {
             Matcher matcher = PURCHASE_JSON_PATTERN.matcher(request.body());
             if (!matcher.find()) { // invalid JSON
-                return Response.HttpCatResponse(400); // Bad Request
+                return Response.HttpCatResponse(400, request); // Bad Request
             }
             int eventId = Integer.parseInt(matcher.group("eventId"));
             int ticketCount = Integer.parseInt(matcher.group("tickets"));
 
             // return 200 if not enough tickets available
             if (ticketCount > purchaseManager.getEvent(eventId).getTicketCount()) {
-                return Response.HttpCatResponse(200); // OK (not created)
+                return Response.HttpCatResponse(200, request); // OK (not created)
             }
 
             int requestId;
             try {
                 requestId = purchaseManager.requestPurchase(eventId, ticketCount).id();
             } catch (InvalidEventException e) {
-                return Response.HttpCatResponse(422); // Unprocessable Entity
+                return Response.HttpCatResponse(422, request); // Unprocessable Entity
             }
 
             return new Response(
@@ -193,53 +697,81 @@ public class Main {
                     requestId
                 )
             );
-        });
+        })
+            .rateLimit(purchaseLimiter)
+            // header checks run before the body is read
+            // Bad Request (missing or reused nonce)
+            .require(request -> nonceManager.validateNonce(request.headers().get("X-Nonce")), 400)
+            // Not Acceptable
+            .require(request -> "application/json".equals(request.headers().get("Accept")), 406)
+            // Unsupported Media Type
+            .require(request -> "application/json".equals(request.headers().get("Content-Type")), 415);
 
         // GET /ticketchief/queue/:id
-        server.route("GET", "/ticketchief/queue/:id", request -> {
+        routes.route("GET", "/ticketchief/queue/:id", request -> {
             if (!"application/json".equals(request.headers().get("Accept"))) {
-                return Response.HttpCatResponse(406); // Not Acceptable
+                return Response.HttpCatResponse(406, request); // Not Acceptable
             }
 
             int id;
             try {
                 id = Integer.parseInt(request.getRouteParam("id"));
             } catch (NumberFormatException e) {
-                return Response.HttpCatResponse(404); // Treat non-numeric IDs as unknown / not found
+                return Response.HttpCatResponse(404, request); // Treat non-numeric IDs as unknown / not found
+            }
+
+            // long-polling variant: ?wait=<ms>&since=<position> parks until the position differs from `since`
+            String wait = request.getQueryParam("wait");
+            if (wait != null) {
+                long waitMillis;
+                int since;
+                try {
+                    waitMillis = Math.min(Long.parseLong(wait), maxLongPollMillis);
+                    since = Integer.parseInt(Objects.requireNonNullElse(request.getQueryParam("since"), "-1"));
+                } catch (NumberFormatException e) {
+                    return Response.HttpCatResponse(400, request); // Bad Request
+                }
+
+                try {
+                    if (purchaseManager.awaitQueuePosition(id, since, waitMillis) == null) {
+                        return Response.HttpCatResponse(404, request); // Not Found (or cancelled while waiting)
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
 
             String requestStatus = purchaseManager.getRequestStatusJson(id);
             if (requestStatus == null) {
-                return Response.HttpCatResponse(404); // Not Found
+                return Response.HttpCatResponse(404, request); // Not Found
             }
 
             return new Response(200, Map.of("Content-Type", "application/json"), requestStatus);
-        });
+        })
+            // long-polls park for up to maxLongPollMillis, which a pool thread has better things to do than
+            .blocking();
 
         // DELETE /ticketchief/queue/:id
-        server.route("DELETE", "/ticketchief/queue/:id", request -> {
-            // Validate nonce for replay attack prevention
-            if (!nonceManager.validateNonce(request.headers().get("X-Nonce"))) {
-                return Response.HttpCatResponse(400); // Bad Request (missing or reused nonce)
-            }
-
+        routes.route("DELETE", "/ticketchief/queue/:id", request -> {
             int id;
             try {
                 id = Integer.parseInt(request.getRouteParam("id"));
             } catch (NumberFormatException e) {
-                return Response.HttpCatResponse(404); // Treat non-numeric IDs as unknown / not found
+                return Response.HttpCatResponse(404, request); // Treat non-numeric IDs as unknown / not found
             }
 
             try {
                 boolean cancelled = purchaseManager.cancelPurchaseRequest(id);
                 if (!cancelled) { // Can't cancel, request already fulfilled!
-                    return Response.HttpCatResponse(409); // Conflict
+                    return Response.HttpCatResponse(409, request); // Conflict
                 }
             } catch (IllegalArgumentException e) {
-                return Response.HttpCatResponse(404); // Not Found
+                return Response.HttpCatResponse(404, request); // Not Found
             }
 
             return new Response(204, Map.of(), ""); // No Content
-        });
+        })
+            // Bad Request (missing or reused nonce), checked before the body is read
+            .require(request -> nonceManager.validateNonce(request.headers().get("X-Nonce")), 400);
     }
 }
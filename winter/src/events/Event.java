@@ -24,6 +24,8 @@ public class Event {
     );
 
     private int ticketCount;
+    private long ticketsSold = 0;
+    private long ticketsRefunded = 0;
     private final String artist;
     private final String venue;
     private final Instant datetime;
@@ -65,12 +67,13 @@ public class Event {
         );
     }
 
-    public int getTicketCount() {
+    public synchronized int getTicketCount() {
         return ticketCount;
     }
 
-    public List<String> sellTickets(int ticketCount) {
+    public synchronized List<String> sellTickets(int ticketCount) {
         this.ticketCount -= ticketCount;
+        this.ticketsSold += ticketCount;
 
         List<String> ticketIds = new ArrayList<>();
         for (int i = 0; i < ticketCount; i++) {
@@ -80,12 +83,24 @@ public class Event {
         return ticketIds;
     }
 
-    public boolean refundTickets(List<String> ticketIds) {
+    public synchronized boolean refundTickets(List<String> ticketIds) {
         // extra ticket ID validation can be done here
         this.ticketCount += ticketIds.size();
+        this.ticketsRefunded += ticketIds.size();
         return true;
     }
 
+    /**
+     * Total tickets sold since startup, including any later refunded.
+     */
+    public synchronized long getTicketsSold() {
+        return ticketsSold;
+    }
+
+    public synchronized long getTicketsRefunded() {
+        return ticketsRefunded;
+    }
+
     public String getArtist() {
         return artist;
     }
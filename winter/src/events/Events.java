@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 @SuppressWarnings("ClassCanBeRecord")
@@ -34,6 +35,10 @@ public class Events {
         }
     }
 
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
     public String getEventsAsJson() {
         StringBuilder json = new StringBuilder("[\n");
         for (Event event : events) {
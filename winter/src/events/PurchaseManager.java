@@ -1,8 +1,18 @@
 package events;
 
+import logging.Log;
+import tracing.Span;
+import tracing.SpanContext;
+import tracing.Tracer;
+
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 public class PurchaseManager {
@@ -14,7 +24,7 @@ public class PurchaseManager {
     /**
      * All purchase requests received by the server, regardless of current state.
      */
-    private final Map<Integer, PurchaseRequest> requests = new HashMap<>();
+    private final Map<Integer, PurchaseRequest> requests = new ConcurrentHashMap<>();
 
     /**
      * Ticket purchase queue. Clients can query queue position, and ticket purchases are finalised once zero is reached.
@@ -24,42 +34,63 @@ public class PurchaseManager {
     /**
      * Purchase requests which have been successfully fulfilled, and tickets dispatched.
      */
-    private final Set<Integer> purchased = new HashSet<>();
+    private final Set<Integer> purchased = ConcurrentHashMap.newKeySet();
 
     /**
      * Last issued purchase request ID (for autoincrement).
      */
-    private int lastRequestId = 0;
+    private final AtomicInteger lastRequestId = new AtomicInteger();
 
     /**
      * Map of request IDs to their enqueuer threads (for cancellation).
      */
-    private final Map<Integer, RequestEnqueuer> enqueuers = new HashMap<>();
+    private final Map<Integer, RequestEnqueuer> enqueuers = new ConcurrentHashMap<>();
+
+    /**
+     * Signalled whenever the queue or the set of fulfilled requests changes, waking up long-polling clients.
+     * A ReentrantLock rather than a monitor, so that parked virtual threads don't pin their carrier.
+     */
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
+
+    /**
+     * Bumped (under {@link #stateLock}) on every signal, so woken pollers can tell whether anything changed without
+     * walking the queue while holding the lock.
+     */
+    private long stateVersion;
 
     private class RequestEnqueuer extends Thread {
-        private final int requestId;
+        private final PurchaseRequest request;
 
-        public RequestEnqueuer(int requestId) {
-            this.requestId = requestId;
+        public RequestEnqueuer(PurchaseRequest request) {
+            this.request = request;
         }
 
         public void run() {
             Thread thread = Thread.currentThread();
+            int requestId = request.id();
 
-            System.out.printf("[%d] Adding request ID %d to queue%n", thread.threadId(), requestId);
-            // wait 2-5 seconds
-            int delay = ThreadLocalRandom.current().nextInt(2000, 5000);
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                thread.interrupt();
-                System.out.printf("[%d] Cancelled adding ID %d to queue%n", thread.threadId(), requestId);
-                enqueuers.remove(requestId);
-                return;
+            try (Span span = Tracer.startSpan("PurchaseManager.enqueue", request.traceContext())) {
+                span.setAttribute("purchase.request_id", requestId);
+
+                Log.info("[%d] Adding request ID %d to queue", thread.threadId(), requestId);
+                // wait 2-5 seconds
+                int delay = ThreadLocalRandom.current().nextInt(2000, 5000);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    thread.interrupt();
+                    span.setAttribute("purchase.cancelled", "true");
+                    Log.info("[%d] Cancelled adding ID %d to queue", thread.threadId(), requestId);
+                    enqueuers.remove(requestId);
+                    return;
+                }
+                request.markQueued();
+                queue.add(requestId);
+                enqueuers.remove(requestId); // Clean up after successful enqueue
+                signalStateChanged();
+                Log.info("[%d] Request ID %d successfully added to queue", thread.threadId(), requestId);
             }
-            queue.add(requestId);
-            enqueuers.remove(requestId); // Clean up after successful enqueue
-            System.out.printf("[%d] Request ID %d successfully added to queue%n", thread.threadId(), requestId);
         }
     }
 
@@ -83,34 +114,65 @@ public class PurchaseManager {
                         continue;
                     }
 
-                    System.out.printf("[%d] Request ID %d is being fulfilled...%n", thread.threadId(), requestId);
-
-                    // wait 4-8 seconds
-                    int delay = ThreadLocalRandom.current().nextInt(4000, 8000);
-                    // ironic that IntelliJ thinks the busywait is here and not the above spinwait
-                    // noinspection BusyWait
-                    Thread.sleep(delay);
+                    Log.info("[%d] Request ID %d is being fulfilled...", thread.threadId(), requestId);
 
-                    // Make sure ticket hasn't been cancelled while waiting
-                    if (!Objects.equals(queue.peek(), requestId)) {
-                        System.out.printf("[%d] Request ID %d no longer in queue, continuing%n", thread.threadId(), requestId);
-                        continue;
+                    PurchaseRequest request = manager.getPurchaseRequest(requestId);
+                    SpanContext trace = request == null ? null : request.traceContext();
+                    if (request != null) {
+                        Tracer.recordSpan("PurchaseManager.queueWait", trace, request.queuedAtNanos(), System.nanoTime());
                     }
 
-                    // ticket time!
-                    requestId = queue.remove();
-                    manager.fulfilPurchase(requestId);
-                    System.out.printf("[%d] Request ID %d completed%n", thread.threadId(), requestId);
+                    try (Span span = Tracer.startSpan("PurchaseManager.payment", trace)) {
+                        span.setAttribute("purchase.request_id", requestId);
+
+                        // wait 4-8 seconds
+                        int delay = ThreadLocalRandom.current().nextInt(4000, 8000);
+                        // ironic that IntelliJ thinks the busywait is here and not the above spinwait
+                        // noinspection BusyWait
+                        Thread.sleep(delay);
+
+                        // Make sure ticket hasn't been cancelled while waiting
+                        if (!Objects.equals(queue.peek(), requestId)) {
+                            span.setAttribute("purchase.cancelled", "true");
+                            Log.info("[%d] Request ID %d no longer in queue, continuing", thread.threadId(), requestId);
+                            continue;
+                        }
+
+                        // ticket time!
+                        requestId = queue.remove();
+                        manager.fulfilPurchase(requestId);
+                        Log.info("[%d] Request ID %d completed", thread.threadId(), requestId);
+                    }
                 }
             } catch (InterruptedException ignored) {}
         }
     }
 
+    /**
+     * Payment processor threads consuming from the queue.
+     */
+    private final List<PaymentProcessor> processors = new ArrayList<>();
+
     public PurchaseManager(Events events) {
         this.events = events;
 
         // initialiser payment processor to consume from queue
-        new PaymentProcessor(this, queue).start();
+        PaymentProcessor processor = new PaymentProcessor(this, queue);
+        processors.add(processor);
+        processor.start();
+    }
+
+    /**
+     * Stops the payment processor and any requests still waiting to join the queue. Requests and events can still be
+     * read afterwards, but nothing moves any more.
+     */
+    public void shutdown() {
+        for (PaymentProcessor processor : processors) {
+            processor.interrupt();
+        }
+        for (RequestEnqueuer enqueuer : enqueuers.values()) {
+            enqueuer.interrupt();
+        }
     }
 
     public Event getEvent(int eventId) throws InvalidEventException {
@@ -129,18 +191,49 @@ public class PurchaseManager {
         return events.getEventsAsJson();
     }
 
+    public List<Event> getEvents() {
+        return events.getEvents();
+    }
+
+    /**
+     * Number of requests currently in the queue, not counting those still waiting to join it.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Number of requests still waiting to join the queue, each of which has its own enqueuer thread.
+     */
+    public int getEnqueuerCount() {
+        return enqueuers.size();
+    }
+
+    public int getProcessorCount() {
+        int alive = 0;
+        for (PaymentProcessor processor : processors) {
+            if (processor.isAlive()) alive++;
+        }
+        return alive;
+    }
+
     public PurchaseRequest requestPurchase(int eventId, int ticketCount) throws InvalidEventException{
-        getEvent(eventId); // ensure that event actually exists
+        try (Span span = Tracer.startSpan("PurchaseManager.requestPurchase")) {
+            getEvent(eventId); // ensure that event actually exists
 
-        PurchaseRequest request = new PurchaseRequest(++lastRequestId, eventId, ticketCount);
-        requests.put(request.id(), request);
+            PurchaseRequest request = new PurchaseRequest(lastRequestId.incrementAndGet(), eventId, ticketCount);
+            requests.put(request.id(), request);
+            span.setAttribute("purchase.request_id", request.id()).setAttribute("event.id", eventId);
+            // carried along so the enqueuer and payment processor can continue the trace
+            request.setTraceContext(span.context());
 
-        // Spawn thread to add to queue after random delay
-        RequestEnqueuer enqueuer = new RequestEnqueuer(request.id());
-        enqueuers.put(request.id(), enqueuer);
-        enqueuer.start();
+            // Spawn thread to add to queue after random delay
+            RequestEnqueuer enqueuer = new RequestEnqueuer(request);
+            enqueuers.put(request.id(), enqueuer);
+            enqueuer.start();
 
-        return request;
+            return request;
+        }
     }
 
     private void fulfilPurchase(int requestId) {
@@ -163,6 +256,7 @@ public class PurchaseManager {
 
         // register the purchase
         purchased.add(requestId);
+        signalStateChanged();
         // free up artificially inflated memory usage (lol)
         request.dropBallast();
         System.gc();
@@ -173,6 +267,13 @@ public class PurchaseManager {
     }
 
     public boolean cancelPurchaseRequest(int requestId) {
+        try (Span span = Tracer.startSpan("PurchaseManager.cancelPurchaseRequest")) {
+            span.setAttribute("purchase.request_id", requestId);
+            return cancel(requestId);
+        }
+    }
+
+    private boolean cancel(int requestId) {
         PurchaseRequest request = requests.get(requestId);
         if (request == null) {
             throw new IllegalArgumentException("Invalid purchase request ID");
@@ -191,29 +292,107 @@ public class PurchaseManager {
 
         queue.remove(requestId);
         requests.remove(requestId);
+        signalStateChanged();
         // free up artificially inflated memory usage (lol)
         request.dropBallast();
         System.gc();
         return true;
     }
 
+    private void signalStateChanged() {
+        stateLock.lock();
+        try {
+            stateVersion++;
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the client-facing queue position of a purchase request.
+     *
+     * @return 0 if fulfilled, the 1-indexed queue position if queued, or -1 if not yet in the queue
+     */
+    public int getQueuePosition(int requestId) {
+        if (purchased.contains(requestId)) {
+            return 0; // already fulfilled!
+        }
+
+        // walk the queue in place rather than copying it just to find an index
+        int index = 0;
+        for (Integer queuedId : queue) {
+            // adding 1 so that "first in the queue" doesn't clash with "completed"
+            index++;
+            if (queuedId == requestId) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Blocks until the queue position of a purchase request differs from {@code since}, the request is cancelled, or
+     * the timeout elapses - whichever comes first.
+     *
+     * @return the queue position at the time of returning, or null if the request does not (or no longer) exist
+     */
+    public Integer awaitQueuePosition(int requestId, int since, long timeoutMillis) throws InterruptedException {
+        try (Span span = Tracer.startSpan("PurchaseManager.awaitQueuePosition")) {
+            span.setAttribute("purchase.request_id", requestId).setAttribute("purchase.since", since);
+            return awaitPosition(requestId, since, timeoutMillis);
+        }
+    }
+
+    private Integer awaitPosition(int requestId, int since, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        // taken before looking at the queue, so a change made while looking still counts as unseen
+        long seen;
+        stateLock.lock();
+        try {
+            seen = stateVersion;
+        } finally {
+            stateLock.unlock();
+        }
+
+        while (true) {
+            // the position is an O(queue) walk, so it's worked out outside the lock rather than holding up everyone
+            // else woken by the same signal
+            if (!requests.containsKey(requestId)) {
+                return null;
+            }
+
+            int position = getQueuePosition(requestId);
+            if (position != since || remaining <= 0) {
+                return position;
+            }
+
+            stateLock.lock();
+            try {
+                while (stateVersion == seen && remaining > 0) {
+                    remaining = stateChanged.awaitNanos(remaining);
+                }
+                seen = stateVersion;
+            } finally {
+                stateLock.unlock();
+            }
+        }
+    }
+
     public String getRequestStatusJson(int requestId) {
+        try (Span span = Tracer.startSpan("PurchaseManager.getRequestStatusJson")) {
+            span.setAttribute("purchase.request_id", requestId);
+            return requestStatusJson(requestId);
+        }
+    }
+
+    private String requestStatusJson(int requestId) {
         PurchaseRequest request = getPurchaseRequest(requestId);
         if (request == null) {
             return null;
         }
 
-        int queuePosition = -1;
-        if (purchased.contains(request.id())) {
-            queuePosition = 0; // already fulfilled!
-        } else {
-            int index = new ArrayList<>(queue).indexOf(request.id());
-            if (index >= 0) {
-                // adding 1 so that "first in the queue" doesn't clash with "completed"
-                queuePosition = index + 1;
-            }
-        }
-
         return String.format(
             """
                 {
@@ -228,7 +407,7 @@ public class PurchaseManager {
             request.id(),
             request.eventId(),
             request.ticketCount(),
-            queuePosition,
+            getQueuePosition(request.id()),
             request.ticketIds().stream()
                 .map(s -> "\"" + s + "\"")
                 .collect(Collectors.joining(", "))
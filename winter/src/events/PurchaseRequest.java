@@ -1,13 +1,18 @@
 package events;
 
-import java.util.ArrayList;
+import logging.Log;
+import tracing.SpanContext;
+
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class PurchaseRequest {
     private final int id;
     private final int eventId;
     private final int ticketCount;
-    private final List<String> ticketIds = new ArrayList<>();
+    private final List<String> ticketIds = new CopyOnWriteArrayList<>();
+    private volatile SpanContext traceContext;
+    private volatile long queuedAtNanos;
     
     // dead weight
     @SuppressWarnings({"unused", "FieldCanBeLocal"})
@@ -20,7 +25,7 @@ public class PurchaseRequest {
         try {
             this.ballast = new byte[256 * 1024 * 1024];
         } catch (OutOfMemoryError e) {
-            System.err.println("Failed to allocate ballast!");
+            Log.warn("Failed to allocate ballast!");
             this.ballast = new byte[0];
         }
     }
@@ -29,6 +34,28 @@ public class PurchaseRequest {
         this.ballast = null;
     }
 
+    /**
+     * Trace of the HTTP request that created this purchase request, or null if it wasn't traced.
+     */
+    public SpanContext traceContext() {
+        return traceContext;
+    }
+
+    public void setTraceContext(SpanContext traceContext) {
+        this.traceContext = traceContext;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which this request joined the queue
+     */
+    public long queuedAtNanos() {
+        return queuedAtNanos;
+    }
+
+    public void markQueued() {
+        this.queuedAtNanos = System.nanoTime();
+    }
+
     public void addTicketId(String ticketId) {
         ticketIds.add(ticketId);
     }
@@ -0,0 +1,248 @@
+package http;
+
+import logging.Log;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers in a few fixed sizes, so that connections don't allocate (and the GC doesn't have to clean
+ * up) fresh off-heap buffers for every connection. Buffers are borrowed with {@link #acquire} and must be handed back
+ * with {@link #release} once the connection is done with them.
+ * <p>
+ * With leak detection on, every buffer remembers where it was last acquired, and if one is garbage collected without
+ * having been released, that stack trace gets logged. It costs a stack trace per acquire, so it's for debugging only.
+ */
+public final class BufferPool {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Buffers of one size.
+     */
+    public static final class SizeClass {
+        private final int bufferSize;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final AtomicInteger leased = new AtomicInteger();
+        private final LongAdder allocated = new LongAdder();
+        private final LongAdder reused = new LongAdder();
+
+        private SizeClass(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public int bufferSize() {
+            return bufferSize;
+        }
+
+        /**
+         * @return buffers sitting in the pool waiting to be borrowed
+         */
+        public int pooled() {
+            return pooled.get();
+        }
+
+        /**
+         * @return buffers currently borrowed, which creeps up if something is leaking them
+         */
+        public int leased() {
+            return leased.get();
+        }
+
+        /**
+         * @return buffers allocated because the pool was empty
+         */
+        public long allocated() {
+            return allocated.sum();
+        }
+
+        /**
+         * @return buffers handed out from the pool instead of being allocated
+         */
+        public long reused() {
+            return reused.sum();
+        }
+    }
+
+    /**
+     * Where a tracked buffer was acquired, or null while it's in the pool. Kept apart from the buffer itself so that
+     * the cleaner doesn't keep the buffer alive.
+     */
+    private static final class Lease {
+        private volatile Throwable acquiredAt;
+    }
+
+    /**
+     * Identifies a buffer by identity (ByteBuffer's own equals compares contents) without keeping it reachable.
+     */
+    private static final class BufferKey extends WeakReference<ByteBuffer> {
+        private final int hash;
+
+        private BufferKey(ByteBuffer buffer) {
+            super(buffer);
+            this.hash = System.identityHashCode(buffer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            ByteBuffer buffer = get();
+            return other instanceof BufferKey key && buffer != null && buffer == key.get();
+        }
+    }
+
+    private final int maxPooledPerClass;
+    private final SizeClass[] sizeClasses;
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final Map<BufferKey, Lease> leases = new ConcurrentHashMap<>();
+    private volatile boolean detectLeaks = false;
+
+    /**
+     * @param maxPooledPerClass most idle buffers to keep of each size, any more released are left for the GC
+     * @param bufferSizes       sizes to pool, requests get the smallest one that fits
+     */
+    public BufferPool(int maxPooledPerClass, int... bufferSizes) {
+        this.maxPooledPerClass = maxPooledPerClass;
+        this.sizeClasses = Arrays.stream(bufferSizes).sorted().distinct().mapToObj(SizeClass::new)
+            .toArray(SizeClass[]::new);
+    }
+
+    public void setLeakDetection(boolean detectLeaks) {
+        this.detectLeaks = detectLeaks;
+    }
+
+    /**
+     * @return a cleared buffer of at least {@code minimumSize} bytes
+     */
+    ByteBuffer acquire(int minimumSize) {
+        SizeClass sizeClass = sizeClassFitting(minimumSize);
+        if (sizeClass == null) {
+            oversized.increment();
+            return ByteBuffer.allocateDirect(minimumSize); // bigger than anything pooled, not worth keeping
+        }
+
+        ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizeClass.bufferSize);
+            sizeClass.allocated.increment();
+        } else {
+            sizeClass.pooled.decrementAndGet();
+            sizeClass.reused.increment();
+            buffer.clear();
+        }
+        sizeClass.leased.incrementAndGet();
+
+        if (detectLeaks) {
+            track(buffer).acquiredAt = new Throwable("Buffer of " + sizeClass.bufferSize + " bytes acquired here");
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back. Buffers that aren't one of the pooled sizes (say, one a TLS engine outgrew) are just
+     * dropped. Don't touch the buffer afterwards, as someone else may already have it.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        SizeClass sizeClass = sizeClassOf(buffer.capacity());
+        if (sizeClass == null) {
+            return;
+        }
+        sizeClass.leased.decrementAndGet();
+
+        if (!leases.isEmpty()) {
+            Lease lease = leases.get(new BufferKey(buffer));
+            if (lease != null) {
+                lease.acquiredAt = null;
+            }
+        }
+
+        if (sizeClass.pooled.incrementAndGet() > maxPooledPerClass) {
+            sizeClass.pooled.decrementAndGet();
+            return; // let the GC have it
+        }
+        sizeClass.free.offer(buffer);
+    }
+
+    private Lease track(ByteBuffer buffer) {
+        BufferKey key = new BufferKey(buffer);
+        Lease lease = leases.get(key);
+        if (lease == null) {
+            // first time this buffer has been tracked, so have the cleaner check on it once it's collected
+            Lease newLease = new Lease();
+            lease = newLease;
+            leases.put(key, newLease);
+            SizeClass sizeClass = sizeClassOf(buffer.capacity());
+            CLEANER.register(buffer, () -> {
+                leases.remove(key);
+                Throwable acquiredAt = newLease.acquiredAt;
+                if (acquiredAt != null) {
+                    leaks.increment();
+                    sizeClass.leased.decrementAndGet(); // it's not coming back, so stop counting it as out
+                    Log.error("Buffer garbage collected without being released: %s", stackTrace(acquiredAt));
+                }
+            });
+        }
+        return lease;
+    }
+
+    private static String stackTrace(Throwable throwable) {
+        StringBuilder trace = new StringBuilder(throwable.getMessage());
+        for (StackTraceElement element : throwable.getStackTrace()) {
+            trace.append("\n    at ").append(element);
+        }
+        return trace.toString();
+    }
+
+    private SizeClass sizeClassFitting(int size) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass.bufferSize >= size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private SizeClass sizeClassOf(int capacity) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass.bufferSize == capacity) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    public SizeClass[] sizeClasses() {
+        return sizeClasses.clone();
+    }
+
+    /**
+     * @return buffers allocated unpooled because they were bigger than the largest size class
+     */
+    public long oversized() {
+        return oversized.sum();
+    }
+
+    /**
+     * @return buffers found garbage collected without being released, only counted with leak detection on
+     */
+    public long leaks() {
+        return leaks.sum();
+    }
+}
@@ -0,0 +1,86 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Collects a response in a direct buffer borrowed from a {@link BufferPool}, and writes it to the connection in one
+ * go when flushed. Closing hands the buffer back, but leaves the connection open.
+ * <p>
+ * With {@link SocketOptions.WritePolicy#IMMEDIATE} every write goes straight out instead, which is mostly useful for
+ * measuring what coalescing saves.
+ */
+final class ChannelOutputStream extends OutputStream {
+    // a whole TLS record's worth of plaintext
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private final WritableByteChannel out;
+    private final BufferPool pool;
+    private final boolean coalesce;
+    private ByteBuffer buffer;
+
+    ChannelOutputStream(WritableByteChannel out, BufferPool pool, SocketOptions.WritePolicy policy) {
+        this.out = out;
+        this.pool = pool;
+        this.coalesce = policy == SocketOptions.WritePolicy.COALESCE;
+        this.buffer = pool.acquire(BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) b);
+        if (!coalesce) {
+            flush();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+            if (length > buffer.capacity()) {
+                // too big to be worth copying in pieces
+                writeFully(ByteBuffer.wrap(bytes, offset, length));
+                return;
+            }
+        }
+        buffer.put(bytes, offset, length);
+        if (!coalesce) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            out.write(source);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package http;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection-level traffic counters: how many connections there have been and from where, how much went over them,
+ * how many requests each carried and how long they stayed open. Useful for telling a proxy that reuses connections
+ * from one opening a new connection per request.
+ * <p>
+ * Everything is a {@link LongAdder} (which stripes itself across cells under contention) or lives in one of a fixed
+ * number of striped maps, so connections don't all queue up on the same cache line. Clients are tracked per address
+ * up to a limit; when a stripe fills up, clients with no open connections are forgotten to make room, and while there
+ * aren't any, new clients are lumped together under {@value #OTHER_CLIENTS}.
+ */
+public final class ConnectionStats {
+    public static final String OTHER_CLIENTS = "(other)";
+
+    private static final int STRIPES = 64;
+    // a full stripe is swept at most this often, so a flood of new clients can't turn every connection into a sweep
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // connection lifetime bucket upper bounds, from 1ms (a quick static file) to 5 minutes (a very patient long-poll)
+    private static final double[] LIFETIME_BUCKET_SECONDS = {
+        0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300
+    };
+    private static final long[] LIFETIME_BUCKET_NANOS = new long[LIFETIME_BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < LIFETIME_BUCKET_SECONDS.length; i++) {
+            LIFETIME_BUCKET_NANOS[i] = (long) (LIFETIME_BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Counters for one client address.
+     */
+    public static final class Client {
+        private final String address;
+        private final AtomicInteger open = new AtomicInteger();
+        private final LongAdder connections = new LongAdder();
+        private final LongAdder requests = new LongAdder();
+
+        private Client(String address) {
+            this.address = address;
+        }
+
+        public String address() {
+            return address;
+        }
+
+        public int open() {
+            return open.get();
+        }
+
+        public long connections() {
+            return connections.sum();
+        }
+
+        public long requests() {
+            return requests.sum();
+        }
+    }
+
+    private final int maxClientsPerStripe;
+    private final Map<String, Client>[] stripes;
+    private final AtomicLong[] nextSweepNanos = new AtomicLong[STRIPES];
+    private final Client other = new Client(OTHER_CLIENTS);
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    // one more than the bounds, for +Inf
+    private final LongAdder[] lifetimeBuckets = new LongAdder[LIFETIME_BUCKET_NANOS.length + 1];
+    private final LongAdder lifetimeNanos = new LongAdder();
+
+    /**
+     * @param maxClients upper bound on client addresses tracked at once
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConnectionStats(int maxClients) {
+        this.maxClientsPerStripe = Math.max(1, maxClients / STRIPES);
+        this.stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ConcurrentHashMap<>();
+            nextSweepNanos[i] = new AtomicLong(System.nanoTime());
+        }
+        for (int i = 0; i < lifetimeBuckets.length; i++) {
+            lifetimeBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a connection as open.
+     *
+     * @return the client's counters, to be handed back to {@link #closed}
+     */
+    Client opened(String address) {
+        Client client = client(address);
+        client.open.incrementAndGet();
+        client.connections.increment();
+        connections.increment();
+        return client;
+    }
+
+    /**
+     * Counts a connection opened with {@link #opened} as closed.
+     *
+     * @param requests requests answered on the connection
+     */
+    void closed(Client client, long lifetimeNanos, long bytesRead, long bytesWritten, int requests) {
+        client.open.decrementAndGet();
+        client.requests.add(requests);
+        this.requests.add(requests);
+        this.bytesRead.add(bytesRead);
+        this.bytesWritten.add(bytesWritten);
+        this.lifetimeNanos.add(lifetimeNanos);
+
+        int bucket = 0;
+        while (bucket < LIFETIME_BUCKET_NANOS.length && lifetimeNanos > LIFETIME_BUCKET_NANOS[bucket]) {
+            bucket++;
+        }
+        lifetimeBuckets[bucket].increment();
+    }
+
+    private Client client(String address) {
+        int stripeIndex = (address.hashCode() & 0x7fffffff) % STRIPES;
+        Map<String, Client> stripe = stripes[stripeIndex];
+        Client client = stripe.get(address);
+        if (client != null) {
+            return client;
+        }
+
+        if (stripe.size() >= maxClientsPerStripe && !sweep(stripeIndex)) {
+            return other;
+        }
+        return stripe.computeIfAbsent(address, Client::new);
+    }
+
+    /**
+     * Forgets clients with nothing open, as they're only history. One racing to reconnect at the same moment just
+     * gets its counts started afresh.
+     *
+     * @return whether the stripe has room now
+     */
+    private boolean sweep(int stripeIndex) {
+        long now = System.nanoTime();
+        AtomicLong nextSweep = nextSweepNanos[stripeIndex];
+        long due = nextSweep.get();
+        if (now - due >= 0 && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            stripes[stripeIndex].values().removeIf(idle -> idle.open.get() == 0);
+        }
+        return stripes[stripeIndex].size() < maxClientsPerStripe;
+    }
+
+    /**
+     * @return connections opened since startup
+     */
+    public long connections() {
+        return connections.sum();
+    }
+
+    /**
+     * @return requests answered on connections that have since closed
+     */
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public int trackedClients() {
+        int total = 0;
+        for (Map<String, Client> stripe : stripes) {
+            total += stripe.size();
+        }
+        return total;
+    }
+
+    /**
+     * @return the clients that opened the most connections, busiest first, counting {@value #OTHER_CLIENTS} as one
+     */
+    public List<Client> busiestClients(int limit) {
+        List<Client> clients = new ArrayList<>();
+        for (Map<String, Client> stripe : stripes) {
+            clients.addAll(stripe.values());
+        }
+        if (other.connections() > 0) {
+            clients.add(other);
+        }
+        // sum() is read once per client up front, as the counts can move while sorting
+        Map<Client, Long> counts = new IdentityHashMap<>();
+        for (Client client : clients) {
+            counts.put(client, client.connections());
+        }
+        clients.sort(Comparator.comparing(counts::get, Comparator.reverseOrder()));
+        return clients.subList(0, Math.min(limit, clients.size()));
+    }
+
+    /**
+     * Upper bounds of the connection lifetime buckets, in seconds, not counting the final +Inf one.
+     */
+    public static double[] lifetimeBucketSeconds() {
+        return LIFETIME_BUCKET_SECONDS.clone();
+    }
+
+    /**
+     * Fills {@code into} with the cumulative number of closed connections that lasted at most each bucket bound.
+     *
+     * @param into as long as {@link #lifetimeBucketSeconds()}
+     * @return total closed connections, i.e. the +Inf bucket
+     */
+    public long lifetimeCounts(long[] into) {
+        long cumulative = 0;
+        for (int i = 0; i < LIFETIME_BUCKET_NANOS.length; i++) {
+            cumulative += lifetimeBuckets[i].sum();
+            into[i] = cumulative;
+        }
+        return cumulative + lifetimeBuckets[LIFETIME_BUCKET_NANOS.length].sum();
+    }
+
+    /**
+     * @return total time closed connections were open for
+     */
+    public long lifetimeNanos() {
+        return lifetimeNanos.sum();
+    }
+
+    /**
+     * @param openConnections connections open right now, which the server counts from the moment they're accepted
+     * @param clientLimit     how many of the busiest clients to list
+     */
+    public String toJSON(int openConnections, int clientLimit) {
+        long[] lifetimes = new long[LIFETIME_BUCKET_SECONDS.length];
+        long closed = lifetimeCounts(lifetimes);
+
+        StringBuilder json = new StringBuilder("{\n")
+            .append("    \"open\": ").append(openConnections).append(",\n")
+            .append("    \"connections\": ").append(connections()).append(",\n")
+            .append("    \"closed\": ").append(closed).append(",\n")
+            .append("    \"requests\": ").append(requests()).append(",\n")
+            .append("    \"requestsPerConnection\": ")
+            .append(String.format(Locale.ROOT, "%.3f", closed == 0 ? 0.0 : requests() / (double) closed)).append(",\n")
+            .append("    \"bytesRead\": ").append(bytesRead()).append(",\n")
+            .append("    \"bytesWritten\": ").append(bytesWritten()).append(",\n")
+            .append("    \"meanLifetimeSeconds\": ")
+            .append(String.format(Locale.ROOT, "%.6f", closed == 0 ? 0.0 : lifetimeNanos() / (double) closed / 1e9))
+            .append(",\n")
+            .append("    \"lifetimeSeconds\": {");
+
+        // non-cumulative here, as it's read by people rather than Prometheus
+        long previous = 0;
+        for (int i = 0; i < lifetimes.length; i++) {
+            json.append(i == 0 ? "\"<=" : ", \"<=").append(LIFETIME_BUCKET_SECONDS[i]).append("\": ")
+                .append(lifetimes[i] - previous);
+            previous = lifetimes[i];
+        }
+        json.append(", \">").append(LIFETIME_BUCKET_SECONDS[LIFETIME_BUCKET_SECONDS.length - 1]).append("\": ")
+            .append(closed - previous).append("},\n")
+            .append("    \"trackedClients\": ").append(trackedClients()).append(",\n")
+            .append("    \"busiestClients\": [");
+
+        List<Client> clients = busiestClients(clientLimit);
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get(i);
+            json.append(i == 0 ? "\n" : ",\n")
+                .append("        {\"address\": \"").append(client.address())
+                .append("\", \"open\": ").append(client.open())
+                .append(", \"connections\": ").append(client.connections())
+                .append(", \"requests\": ").append(client.requests()).append('}');
+        }
+        return json.append(clients.isEmpty() ? "]\n}" : "\n    ]\n}").toString();
+    }
+}
@@ -0,0 +1,173 @@
+package http;
+
+import tracing.Span;
+
+/**
+ * Bookkeeping for a single request/response cycle, handed to exchange observers once the response has been written.
+ * Timestamps are {@link System#nanoTime()} readings taken at the boundaries between each phase.
+ */
+public final class Exchange {
+    /**
+     * Route template reported when the request was served by {@link HTTPServer#defaultRoute}.
+     */
+    public static final String STATIC_ROUTE = "(static)";
+
+    /**
+     * Route template reported when the request couldn't be parsed.
+     */
+    public static final String INVALID_ROUTE = "(invalid)";
+
+    private final long startEpochMillis = System.currentTimeMillis();
+    private final long acceptedNanos;
+    private long startedNanos;
+    private long parsedNanos;
+    private long handledNanos;
+    private long writtenNanos;
+
+    private Span span = Span.NOOP;
+
+    private String method = "";
+    private String route = INVALID_ROUTE;
+    private int statusCode;
+    private long bytesIn;
+    private long bytesOut;
+    private boolean crossOrigin;
+    private boolean inputUnread;
+
+    Exchange(long acceptedNanos) {
+        this.acceptedNanos = acceptedNanos;
+        this.startedNanos = acceptedNanos;
+        this.parsedNanos = acceptedNanos;
+        this.handledNanos = acceptedNanos;
+        this.writtenNanos = acceptedNanos;
+    }
+
+    void markStarted() {
+        startedNanos = parsedNanos = handledNanos = writtenNanos = System.nanoTime();
+    }
+
+    long acceptedNanos() {
+        return acceptedNanos;
+    }
+
+    long startedNanos() {
+        return startedNanos;
+    }
+
+    /**
+     * The request's root trace span, or {@link Span#NOOP} if it isn't being traced.
+     */
+    public Span span() {
+        return span;
+    }
+
+    void setSpan(Span span) {
+        this.span = span;
+    }
+
+    void markParsed(String method) {
+        this.method = method;
+        parsedNanos = handledNanos = writtenNanos = System.nanoTime();
+    }
+
+    void markCrossOrigin() {
+        this.crossOrigin = true;
+    }
+
+    boolean isCrossOrigin() {
+        return crossOrigin;
+    }
+
+    /**
+     * Notes that the client may still be sending something the server never read, like the body of a rejected upload.
+     */
+    void markInputUnread() {
+        this.inputUnread = true;
+    }
+
+    boolean isInputUnread() {
+        return inputUnread;
+    }
+
+    void markRouted(String route) {
+        this.route = route;
+    }
+
+    void markHandled(int statusCode) {
+        this.statusCode = statusCode;
+        handledNanos = writtenNanos = System.nanoTime();
+    }
+
+    /**
+     * Records what was read off a connection that closed without getting a response.
+     */
+    void markReceived(long bytesIn) {
+        this.bytesIn = bytesIn;
+    }
+
+    void markWritten(long bytesIn, long bytesOut) {
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        writtenNanos = System.nanoTime();
+    }
+
+    public long startEpochMillis() {
+        return startEpochMillis;
+    }
+
+    public String method() {
+        return method;
+    }
+
+    /**
+     * The path template of the matched route (e.g. {@code /ticketchief/queue/:id}) rather than the concrete path, so
+     * that requests can be grouped without unbounded cardinality.
+     */
+    public String route() {
+        return route;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+
+    public long bytesIn() {
+        return bytesIn;
+    }
+
+    public long bytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Time between the connection being accepted and a thread picking it up.
+     */
+    public long queueNanos() {
+        return startedNanos - acceptedNanos;
+    }
+
+    /**
+     * Time spent reading and parsing the request line, headers and body.
+     */
+    public long parseNanos() {
+        return parsedNanos - startedNanos;
+    }
+
+    /**
+     * Time spent routing and running the handler.
+     */
+    public long handlerNanos() {
+        return handledNanos - parsedNanos;
+    }
+
+    /**
+     * Time spent rendering and writing the response.
+     */
+    public long writeNanos() {
+        return writtenNanos - handledNanos;
+    }
+
+    public long totalNanos() {
+        return writtenNanos - acceptedNanos;
+    }
+}
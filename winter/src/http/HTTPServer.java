@@ -1,17 +1,43 @@
 package http;
 
+import logging.Level;
+import logging.Log;
+import tracing.Span;
+import tracing.SpanContext;
+import tracing.Tracer;
 import utils.ANSI;
+import utils.UTF8;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.StringJoiner;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,8 +55,9 @@ public class HTTPServer {
         // https://www.rfc-editor.org/rfc/rfc9112.html#name-request-target
         // i'm only gonna handle origin-form because the other forms are silly (for this assignment)
         // again, taking a simplistic view of what uri segments look like because RFC 3986 3.3 is dumb
-        // also, screw query params for now
-        + "(?<path>(?:/[^/]*)+)"
+        // query params are split off here and decoded later, fragments never reach the server anyway
+        + "(?<path>(?:/[^/?\\s]*)+)"
+        + "(?:\\?(?<query>\\S*))?"
         + "\\s+"
 
         // https://www.rfc-editor.org/rfc/rfc9112.html#name-http-version
@@ -38,7 +65,53 @@ public class HTTPServer {
         + "HTTP/1.1$"
     );
 
-    private final Map<Route, Function<Request, Response>> routes = new LinkedHashMap<>();
+    private static final int RESPONSE_CACHE_ENTRIES = 1024;
+    // client addresses with connection counts kept, beyond which new ones are counted together
+    private static final int TRACKED_CLIENTS = 4096;
+    // idle buffers kept of each size, enough for a few hundred connections' worth without going back to the OS
+    private static final int POOLED_BUFFERS_PER_SIZE = 256;
+
+    // how long, and for how many bytes, the rest of a rejected request gets read and thrown away before closing
+    private static final long LINGER_MILLIS = 2000;
+    private static final long LINGER_MAX_BYTES = 1024 * 1024;
+
+    // how long accept() failures (say, running out of file descriptors) back off for, doubling each time in a row
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 100;
+
+    // https://www.rfc-editor.org/rfc/rfc9110.html#name-expect
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // methods that can show up in an Allow header, in the order they're listed
+    private static final String[] ALLOWABLE_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS"};
+    private static final int GET_BIT = methodBit("GET");
+    private static final int HEAD_BIT = methodBit("HEAD");
+    private static final int OPTIONS_BIT = methodBit("OPTIONS");
+    private static final int STATIC_METHODS = GET_BIT | HEAD_BIT | OPTIONS_BIT;
+
+    // replaced whole rather than changed, so each request reads it once and gets a consistent set of routes
+    private volatile RouteTable routes = new RouteTable();
+    private final List<Consumer<Exchange>> exchangeObservers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final ConnectionStats connectionStats = new ConnectionStats(TRACKED_CLIENTS);
+    private final List<ServerSocketChannel> listeners = new CopyOnWriteArrayList<>();
+    private final ResponseCache responseCache = new ResponseCache(RESPONSE_CACHE_ENTRIES);
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    private final BufferPool buffers = new BufferPool(
+        POOLED_BUFFERS_PER_SIZE,
+        RequestReader.BUFFER_SIZE, ChannelOutputStream.BUFFER_SIZE, TLSConnection.PACKET_BUFFER_SIZE
+    );
+    // OPTIONS answers by set of allowed methods, of which there are only ever a handful
+    private final Map<Integer, Response> optionsResponses = new ConcurrentHashMap<>();
+    private TLSConfig tlsConfig = null;
+    private HandlerPool handlerPool = null;
+    private HostnameResolver hostnameResolver = null;
+    private volatile RequestLimits limits = RequestLimits.DEFAULT;
+    private volatile SocketOptions socketOptions = SocketOptions.DEFAULT;
+    private volatile TrustedProxies trustedProxies = TrustedProxies.NONE;
+    private String corsOrigin = null;
+    private String corsAllowedHeaders = "";
+    private byte[] corsResponseHeaders = null;
     private final Path documentRoot;
 
     public HTTPServer(Path documentRoot) {
@@ -48,27 +121,178 @@ public class HTTPServer {
         this.documentRoot = documentRoot;
     }
 
-    public void route(String method, String path, Function<Request, Response> handler) {
-        this.routes.put(new Route(method, path), handler);
+    /**
+     * @return the new route, for setting per-route options
+     */
+    public synchronized Route route(String method, String path, Function<Request, Response> handler) {
+        RouteTable next = routes.copy();
+        Route route = next.route(method, path, handler);
+        routes = next;
+        return route;
+    }
+
+    /**
+     * Swaps in a whole new set of routes at once. Requests that have already been routed carry on with the handler
+     * they got from the old table, and everything after sees only the new one.
+     */
+    public synchronized void replaceRoutes(RouteTable routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Lets browsers on another origin call the API: preflight requests get answered from the route table, and
+     * responses to cross-origin requests are marked as shareable.
+     *
+     * @param origin         allowed origin, e.g. {@code https://snowmon.example.com}, or {@code *} for any
+     * @param allowedHeaders request headers scripts are allowed to send
+     */
+    public void allowCORS(String origin, String... allowedHeaders) {
+        this.corsOrigin = origin;
+        this.corsAllowedHeaders = String.join(", ", allowedHeaders);
+        this.corsResponseHeaders = ("Access-Control-Allow-Origin: " + origin + "\r\nVary: Origin\r\n")
+            .getBytes(StandardCharsets.UTF_8);
+        optionsResponses.clear();
+    }
+
+    public void setRequestLimits(RequestLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Takes effect on the next {@link #start}, though the write policy and per-connection options apply to connections
+     * accepted from then on.
+     */
+    public void setSocketOptions(SocketOptions socketOptions) {
+        this.socketOptions = socketOptions;
+    }
+
+    /**
+     * Takes the client's address from the forwarding headers on connections from these proxies, rather than using
+     * the proxy's own.
+     */
+    public void trustProxies(TrustedProxies trustedProxies) {
+        this.trustedProxies = trustedProxies;
+    }
+
+    public ResponseCache responseCache() {
+        return responseCache;
+    }
+
+    public RequestCoalescer requestCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * The direct buffers connections borrow for reading requests, writing responses and TLS.
+     */
+    public BufferPool bufferPool() {
+        return buffers;
+    }
+
+    /**
+     * Runs CPU-bound route handlers on the given pool rather than on each connection's thread. Call before
+     * {@link #start}.
+     */
+    public void useHandlerPool(HandlerPool handlerPool) {
+        this.handlerPool = handlerPool;
+    }
+
+    /**
+     * @return the handler pool, or null if handlers run on their connection's thread
+     */
+    public HandlerPool handlerPool() {
+        return handlerPool;
+    }
+
+    /**
+     * Registers a callback to be run after every response has been written, e.g. for access logging or metrics.
+     * Observers run on the connection's thread, so they should be quick.
+     */
+    public void observe(Consumer<Exchange> observer) {
+        this.exchangeObservers.add(observer);
+    }
+
+    /**
+     * Looks up the hostname of every client that connects, in the background, and hands it to {@link #onResolved}.
+     * Connections never wait for the lookup.
+     */
+    public void resolveHostnames(HostnameResolver hostnameResolver) {
+        this.hostnameResolver = hostnameResolver;
+    }
+
+    /**
+     * @return the hostname resolver, or null if client hostnames aren't looked up
+     */
+    public HostnameResolver hostnameResolver() {
+        return hostnameResolver;
+    }
+
+    /**
+     * Terminates TLS on every connection from now on. Call before {@link #start}.
+     */
+    public void useTLS(TLSConfig tlsConfig) {
+        this.tlsConfig = tlsConfig;
+    }
+
+    /**
+     * Number of connections accepted but not yet closed.
+     */
+    public int openConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Connection counts, traffic and lifetimes, overall and per client address.
+     */
+    public ConnectionStats connectionStats() {
+        return connectionStats;
     }
 
     protected void onReady(ServerSocket server) {
-        System.out.printf(
-            ANSI.PURPLE_BOLD_BRIGHT + "HTTP server listening on %s:%d%n" + ANSI.RESET,
+        Log.info(
+            ANSI.PURPLE_BOLD_BRIGHT + "HTTP server listening on %s:%d" + ANSI.RESET,
             server.getInetAddress().getHostAddress(),
             server.getLocalPort()
         );
     }
 
+    /**
+     * Called as soon as a connection is picked up, before anything is read from it. Only the IP address is known at
+     * this point, any hostname turns up later in {@link #onResolved}.
+     */
     protected void onConnect(Socket socket) {
-        System.out.printf(
-            ANSI.CYAN_BOLD_BRIGHT + "*** New connection: %s:%d%n" + ANSI.RESET,
-            socket.getInetAddress().getHostName(),
+        Log.info(
+            ANSI.CYAN_BOLD_BRIGHT + "*** New connection: %s:%d" + ANSI.RESET,
+            socket.getInetAddress().getHostAddress(),
             socket.getPort()
         );
     }
 
-    private static String buildLogSuffix(Map<String, String> headers, String body) {
+    /**
+     * Called once a client's hostname has been looked up, on whichever thread finished the lookup, so it mustn't
+     * block. The connection may well be closed by then.
+     *
+     * @param hostname the client's hostname, or its IP address if it hasn't got one or it couldn't be found in time
+     */
+    protected void onResolved(InetAddress address, int port, String hostname) {
+        if (!hostname.equals(address.getHostAddress())) {
+            Log.info(ANSI.CYAN + "    %s:%d is %s" + ANSI.RESET, address.getHostAddress(), port, hostname);
+        }
+    }
+
+    private void resolveHostname(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        int port = socket.getPort();
+        hostnameResolver.resolve(address).thenAccept(hostname -> {
+            try {
+                onResolved(address, port, hostname);
+            } catch (RuntimeException e) {
+                Log.error("Hostname hook failed: %s: %s", e.getClass().getName(), e.getMessage());
+            }
+        });
+    }
+
+    private static String buildLogSuffix(Map<String, String> headers, long bodySize) {
         StringBuilder suffix = new StringBuilder();
 
         int headerCount = headers.size();
@@ -80,9 +304,8 @@ public class HTTPServer {
             suffix.append(")");
         }
 
-        int bodySize = body.getBytes().length;
         if (bodySize > 0) {
-            suffix.append(" [").append(body.length()).append(" byte");
+            suffix.append(" [").append(bodySize).append(" byte");
             if (bodySize > 1) {
                 suffix.append("s");
             }
@@ -93,28 +316,32 @@ public class HTTPServer {
     }
 
     protected void onRequest(Request request) {
+        if (!Log.enabled(Level.INFO)) return;
+
         String message = (
             ANSI.YELLOW + "--> "
             + request.method() + " "
             + request.path()
-            + buildLogSuffix(request.headers(), request.body())
+            + buildLogSuffix(request.headers(), request.bodyLength())
             + ANSI.RESET
         );
 
-        System.out.println(message);
+        Log.log(Level.INFO, message);
     }
 
     protected void onResponse(Response response) {
+        if (!Log.enabled(Level.INFO)) return;
+
         String colour = response.statusCode() >= 400 ? ANSI.RED : ANSI.GREEN;
         String message = (
             colour + "<-- "
             + response.statusCode() + " "
             + response.getStatusMessage()
-            + buildLogSuffix(response.headers(), response.body())
+            + buildLogSuffix(response.headers(), response.encode().length - response.headLength())
             + ANSI.RESET
         );
 
-        System.out.println(message);
+        Log.log(Level.INFO, message);
     }
 
     protected Response defaultRoute(Request request) {
@@ -128,131 +355,658 @@ public class HTTPServer {
 
         if (Files.isRegularFile(filePath) && Files.isReadable(filePath)) {
             try {
-                String fileContent = Files.readString(filePath);
                 String contentType = Files.probeContentType(filePath); // guess content type
+                if (request.method().equals("HEAD")) {
+                    // no point holding the whole file in memory just to throw it away, uptime checkers love HEAD. it's
+                    // still read through once, as GET only serves valid UTF-8 and HEAD has to answer the same way
+                    UTF8.validate(filePath);
+                    return new Response(
+                        200,
+                        Map.of(
+                            "Content-Type", contentType + "; charset=utf-8",
+                            "Content-Length", String.valueOf(Files.size(filePath))
+                        ),
+                        ""
+                    );
+                }
+
+                String fileContent = Files.readString(filePath);
                 return new Response(200, Map.of("Content-Type", contentType + "; charset=utf-8"), fileContent);
             } catch (IOException e) {
-                System.err.printf("Failed to read requested file: %s: %s%n", filePath, e.getMessage());
-                return Response.HttpCatResponse(404);
+                Log.error("Failed to read requested file: %s: %s", filePath, e.getMessage());
+                return Response.HttpCatResponse(404, request);
             }
         }
 
         // fallback 404 response
-        return Response.HttpCatResponse(404);
+        return Response.HttpCatResponse(404, request);
     }
 
     protected Response errorRoute(Exception e) {
-        System.err.printf("Server error when handling request: %s: %s%n", e.getClass().getName(), e.getMessage());
+        Log.error("Server error when handling request: %s: %s", e.getClass().getName(), e.getMessage());
         return Response.HttpCatResponse(500);
     }
 
-    private Map<String, String> parseHeaders(BufferedReader in) throws BadRequestException, IOException {
+    private Map<String, String> parseHeaders(RequestReader in, RequestLimits limits) throws IOException {
         // https://www.rfc-editor.org/rfc/rfc9112.html#name-field-syntax
         // Use case-insensitive map as HTTP headers are case-insensitive per RFC 7230
         Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        long headersStart = in.consumed();
         String line;
-        while (!(line = in.readLine().strip()).isEmpty()) {
+        while (true) {
+            int remaining = (int) (limits.maxHeaderBytes() - (in.consumed() - headersStart));
+            line = in.readLine(remaining, 431);
+            if (line == null) {
+                throw new EOFException("Connection closed mid-headers");
+            }
+            line = line.strip();
+            if (line.isEmpty()) {
+                return headers;
+            }
+
+            if (headers.size() >= limits.maxHeaderCount()) {
+                throw new RequestTooLargeException(431, "More than " + limits.maxHeaderCount() + " headers");
+            }
             String[] parts = line.split(":\\s*", 2);
             if (parts.length < 2) {
                 throw new BadRequestException("Invalid header line: " + line);
             }
             headers.put(parts[0], parts[1]);
         }
-        return headers;
     }
 
-    private String parseBody(BufferedReader in, Map<String, String> headers) throws BadRequestException, IOException {
-        // this is a cursed abomination of an implementation but good enough for this coursework
+    /**
+     * Reads the body into the request, in memory unless the route spools large bodies to disk.
+     *
+     * @param route the first route matching the request, or null if there isn't one
+     */
+    void parseBody(RequestReader in, Request request, Route route) throws IOException {
+        parseBody(in, request, route, limits);
+    }
 
-        String contentLengthString = headers.get("Content-Length");
+    private void parseBody(RequestReader in, Request request, Route route, RequestLimits limits) throws IOException {
+        String contentLengthString = request.headers().get("Content-Length");
         if (contentLengthString == null) {
             // assume no body content
-            return "";
+            return;
         }
 
-        int contentLength;
+        long contentLength;
         try {
-            contentLength = Integer.parseInt(contentLengthString);
+            contentLength = Long.parseLong(contentLengthString);
         } catch (NumberFormatException e) {
             throw new BadRequestException("Invalid Content-Length: " + contentLengthString);
         }
+        if (contentLength < 0) {
+            throw new BadRequestException("Invalid Content-Length: " + contentLengthString);
+        }
+
+        // checked before reading a single byte, so claiming a 2 GB body just gets you a 413
+        boolean spool = route != null && route.spoolsBodies();
+        long maxBodyBytes = spool ? route.maxSpooledBodyBytes() : limits.maxBodyBytes();
+        if (contentLength > maxBodyBytes) {
+            throw new RequestTooLargeException(413, "Body of " + contentLength + " bytes is over " + maxBodyBytes);
+        }
+
+        if (!spool || contentLength <= limits.spoolThresholdBytes()) {
+            request.setBody(in.readBytes((int) contentLength));
+            return;
+        }
 
-        char[] buffer = new char[contentLength];
-        int cursor = 0;
-        while (cursor < contentLength) {
-            int read = in.read(buffer);
-            if (read == -1) {
-                throw new IOException("Unexpected end of stream");
+        Path file = Files.createTempFile("snowmon-body-", ".tmp");
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            in.transferTo(out, contentLength);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        request.setBody(file, contentLength);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        // https://www.rfc-editor.org/rfc/rfc3986#section-3.4
+        // first occurrence of a key wins, valueless keys map to an empty string
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            String[] parts = pair.split("=", 2);
+            try {
+                params.putIfAbsent(
+                    URLDecoder.decode(parts[0], StandardCharsets.UTF_8),
+                    parts.length > 1 ? URLDecoder.decode(parts[1], StandardCharsets.UTF_8) : ""
+                );
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Invalid query string: " + query);
             }
-            cursor += read;
         }
+        return params;
+    }
 
-        return new String(buffer);
+    Response routeRequest(Request request, Exchange exchange) {
+        return routeRequest(routes, request, exchange);
     }
 
-    private Response routeRequest(Request request) {
-        for (Route route : routes.keySet()) {
+    private Response routeRequest(RouteTable routes, Request request, Exchange exchange) {
+        for (Route route : routes.routes()) {
             if (route.matches(request)) {
-                Response response = routes.get(route).apply(request);
+                Response response;
+                Function<Request, Response> handler = routes.handler(route);
+
+                try (Span span = Tracer.startSpan("handler")) {
+                    span.setAttribute("http.route", route.path());
+                    if (route.isCached()) {
+                        response = responseCache.get(route, request, () -> runHandler(route, handler, request));
+                    } else if (route.isCoalesced()) {
+                        response = coalescer.run(route, request, () -> runHandler(route, handler, request));
+                    } else {
+                        response = runHandler(route, handler, request);
+                    }
+                }
                 if (response != null) {
+                    exchange.markRouted(route.path());
                     return response;
                 }
             }
         }
 
+        if (request.method().equals("OPTIONS")) {
+            return optionsRoute(routes, request, exchange);
+        }
+
         // oops, no matches
+        exchange.markRouted(Exchange.STATIC_ROUTE);
         return defaultRoute(request);
     }
 
-    private void handleClient(Socket socket, BufferedReader in, BufferedWriter out) throws BadRequestException, IOException {
+    private Response runHandler(Route route, Function<Request, Response> handler, Request request) {
+        if (handlerPool == null) {
+            return handler.apply(request);
+        }
+        // the span has to be handed over explicitly, as the pool's threads don't share the connection's
+        SpanContext parent = Tracer.currentContext();
+        return handlerPool.call(route.workload(), () -> {
+            try (Span span = Tracer.startSpan("handler.run", parent)) {
+                span.setAttribute("handler.workload", route.workload().name());
+                return handler.apply(request);
+            }
+        });
+    }
+
+    /**
+     * Answers OPTIONS (and CORS preflight) requests with whichever methods the route table has for the path.
+     */
+    private Response optionsRoute(RouteTable routes, Request request, Exchange exchange) {
+        int allowed = 0;
+        for (Route route : routes.routes()) {
+            if (route.matchesPath(request.path())) {
+                if (allowed == 0) {
+                    exchange.markRouted(route.path());
+                }
+                allowed |= methodBit(route.method());
+            }
+        }
+
+        if (allowed == 0) {
+            exchange.markRouted(Exchange.STATIC_ROUTE);
+            Path filePath = Paths.get(documentRoot.toString(), request.path());
+            if (!Files.exists(filePath)) {
+                return Response.HttpCatResponse(404, request);
+            }
+            allowed = STATIC_METHODS;
+        }
+
+        if ((allowed & GET_BIT) != 0) {
+            allowed |= HEAD_BIT;
+        }
+        return optionsResponses.computeIfAbsent(allowed | OPTIONS_BIT, this::buildOptionsResponse);
+    }
+
+    private Response buildOptionsResponse(int allowed) {
+        StringJoiner methods = new StringJoiner(", ");
+        for (String method : ALLOWABLE_METHODS) {
+            if ((allowed & methodBit(method)) != 0) {
+                methods.add(method);
+            }
+        }
+
+        Map<String, String> headers = corsOrigin == null
+            ? Map.of("Allow", methods.toString())
+            : Map.of(
+                "Allow", methods.toString(),
+                // https://fetch.spec.whatwg.org/#http-access-control-allow-origin
+                "Access-Control-Allow-Origin", corsOrigin,
+                "Access-Control-Allow-Methods", methods.toString(),
+                "Access-Control-Allow-Headers", corsAllowedHeaders,
+                "Access-Control-Max-Age", "600",
+                "Vary", "Origin"
+            );
+        Response response = new Response(204, headers, "");
+        response.encode();
+        return response;
+    }
+
+    private static int methodBit(String method) {
+        for (int i = 0; i < ALLOWABLE_METHODS.length; i++) {
+            if (ALLOWABLE_METHODS[i].equals(method)) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Parses the request line and headers. The body is left for later, as how it's read depends on the route.
+     *
+     * @return the request without its body, or null if the client hung up without sending a request
+     */
+    Request parseRequestHead(RequestReader in) throws IOException {
+        return parseRequestHead(in, limits);
+    }
+
+    private Request parseRequestHead(RequestReader in, RequestLimits limits) throws IOException {
+        // parse http request line
+        // https://www.rfc-editor.org/rfc/rfc9112.html#name-request-line
+        String line = in.readLine(limits.maxRequestLineBytes(), 414);
+        if (line == null) {
+            return null;
+        }
+        Matcher requestLine = REQUEST_LINE_PATTERN.matcher(line);
+        if (!requestLine.matches()) {
+            throw new BadRequestException("Invalid request line: " + line);
+        }
+        String method = requestLine.group("method");
+        String path = requestLine.group("path");
+        Map<String, String> query = parseQuery(requestLine.group("query"));
+
+        Map<String, String> headers = parseHeaders(in, limits);
+        return new Request(method, path, query, headers, "");
+    }
+
+    /**
+     * @return the response, or null if the client hung up without sending a request
+     */
+    private Response handleClient(
+        Socket socket, RequestReader in, OutputStream out, Exchange exchange
+    ) throws IOException {
         onConnect(socket);
-        Response response;
+        if (hostnameResolver != null) {
+            resolveHostname(socket);
+        }
 
+        // read once, so that a config reload mid-request can't mix old and new settings
+        RouteTable routes = this.routes;
+        RequestLimits limits = this.limits;
+
+        Request request = null;
         try {
-            // parse http request line
-            // https://www.rfc-editor.org/rfc/rfc9112.html#name-request-line
-            Matcher requestLine = REQUEST_LINE_PATTERN.matcher(in.readLine());
-            if (!requestLine.matches()) {
-                throw new BadRequestException("Invalid request line: " + requestLine);
+            request = parseRequestHead(in, limits);
+            if (request == null) {
+                // e.g. health checks and browsers opening spare connections, nothing to answer
+                return null;
+            }
+            request.setClientAddress(trustedProxies.clientAddress(socket.getInetAddress(), request.headers()));
+            String method = request.method();
+            String path = request.path();
+            Map<String, String> headers = request.headers();
+
+            // requests the route will turn away anyway are answered before reading (or asking for) their body
+            Route route = findRoute(routes, request);
+            Response rejection = route == null ? null : route.admit(request);
+            String expect = headers.get("Expect");
+            if (rejection == null && expect != null && !expect.equalsIgnoreCase("100-continue")) {
+                // the only expectation there is, really
+                rejection = Response.HttpCatResponse(417, request);
+            }
+            if (rejection == null) {
+                if (expect != null) {
+                    // client's waiting for the go-ahead before sending its body
+                    out.write(CONTINUE_RESPONSE);
+                    out.flush();
+                }
+                parseBody(in, request, route, limits);
+            } else if (headers.containsKey("Content-Length") || headers.containsKey("Transfer-Encoding")) {
+                exchange.markInputUnread();
+            }
+            exchange.markParsed(method);
+            if (corsOrigin != null && headers.containsKey("Origin")) {
+                exchange.markCrossOrigin();
             }
-            String method = requestLine.group("method");
-            String path = requestLine.group("path");
 
-            // parse headers and body from request
-            Map<String, String> headers = parseHeaders(in);
-            String body = parseBody(in, headers);
+            // the root span starts retroactively, as the traceparent header is only known once parsing is done
+            Span span = Tracer.startServerSpan(
+                method + " " + path, headers.get("traceparent"), exchange.startedNanos()
+            );
+            exchange.setSpan(span);
+            span.setAttribute("http.request.method", method).setAttribute("url.path", path);
+            Tracer.recordSpan("parse", span.context(), exchange.startedNanos(), System.nanoTime());
 
-            // construct Request object
-            Request request = new Request(method, path, headers, body);
             onRequest(request);
-            response = routeRequest(request);
+            if (rejection != null) {
+                exchange.markRouted(route == null ? Exchange.STATIC_ROUTE : route.path());
+                return rejection;
+            }
+            try (Span routeSpan = Tracer.startSpan("route")) {
+                routeSpan.setAttribute("routes", routes.size());
+                return routeRequest(routes, request, exchange);
+            }
+        } catch (RequestTooLargeException e) {
+            Log.warn("Rejected oversized request: %s", e.getMessage());
+            exchange.markInputUnread();
+            return Response.HttpCatResponse(e.statusCode());
         } catch (BadRequestException e) {
             // construct bad request response instead
-            response = Response.HttpCatResponse(400);
+            exchange.markInputUnread();
+            return Response.HttpCatResponse(400);
+        } finally {
+            if (request != null) {
+                request.discardBody();
+            }
         }
+    }
 
-        onResponse(response);
-        out.write(response.render());
+    Route findRoute(Request request) {
+        return findRoute(routes, request);
     }
 
-    public void start(int port) throws IOException {
-        try (ServerSocket server = new ServerSocket(port)) {
-            onReady(server);
-
-            while (!server.isClosed()) {
-                try (
-                    Socket socket = server.accept();
-                    // gosh we sure love java don't we
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))
-                ) {
-                    try {
-                        handleClient(socket, in, out);
-                    } catch (Exception e) {
-                        out.write(errorRoute(e).render());
-                    }
+    private static Route findRoute(RouteTable routes, Request request) {
+        for (Route route : routes.routes()) {
+            if (route.matches(request)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    private void serveClient(SocketChannel channel, Exchange exchange) {
+        exchange.markStarted();
+        Socket socket = channel.socket();
+        SocketOptions options = socketOptions;
+        configure(channel, options);
+        ConnectionStats.Client client = connectionStats.opened(socket.getInetAddress().getHostAddress());
+        TLSConnection tls = tlsConfig == null ? null : new TLSConnection(channel, tlsConfig.createEngine(), buffers);
+
+        try (
+            channel;
+            // closing the TLS connection sends close_notify before the socket closes
+            ByteChannel connection = tls == null ? channel : tls;
+            RequestReader in = new RequestReader(connection, buffers);
+            OutputStream out = new ChannelOutputStream(connection, buffers, options.writePolicy())
+        ) {
+            if (tls != null) {
+                tls.handshake();
+            }
+
+            Response response;
+            try {
+                response = handleClient(socket, in, out, exchange);
+            } catch (EOFException e) {
+                // client gave up halfway through its request, so there's nobody to answer
+                Log.debug("Connection closed mid-request: %s", e.getMessage());
+                exchange.markReceived(in.received());
+                return;
+            } catch (Exception e) {
+                response = errorRoute(e);
+            }
+            if (response == null) {
+                exchange.markReceived(in.received());
+                return;
+            }
+            exchange.markHandled(response.statusCode());
+            onResponse(response);
+
+            int written;
+            try (Span span = Tracer.startSpan("write")) {
+                written = writeResponse(out, response, exchange);
+                span.setAttribute("http.response.size", written);
+                out.flush();
+            }
+            exchange.markWritten(in.received(), written);
+            if (exchange.isInputUnread()) {
+                linger(channel, tls == null);
+            }
+        } catch (IOException e) {
+            Log.warn("Connection error: %s: %s", e.getClass().getName(), e.getMessage());
+            exchange.span().setError();
+        } finally {
+            openConnections.decrementAndGet();
+            connectionStats.closed(
+                client, System.nanoTime() - exchange.acceptedNanos(), exchange.bytesIn(), exchange.bytesOut(),
+                exchange.statusCode() == 0 ? 0 : 1
+            );
+
+            Span span = exchange.span();
+            span.setName(exchange.method() + " " + exchange.route())
+                .setAttribute("http.route", exchange.route())
+                .setAttribute("http.response.status_code", exchange.statusCode());
+            if (exchange.statusCode() >= 500) {
+                span.setError();
+            }
+            span.close();
+        }
+
+        for (Consumer<Exchange> observer : exchangeObservers) {
+            try {
+                observer.accept(exchange);
+            } catch (RuntimeException e) {
+                Log.error("Exchange observer failed: %s: %s", e.getClass().getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads and throws away whatever the client is still sending, for a little while, before the connection closes.
+     * Closing a socket with unread data makes the kernel answer with a reset rather than a FIN, which can wipe out the
+     * response before the client reads it, so a client uploading something too big would see "connection reset"
+     * rather than the 413. See <a href="https://www.rfc-editor.org/rfc/rfc9112.html#name-tear-down">RFC 9112
+     * section 9.6</a>.
+     *
+     * @param plaintext whether the output side can be shut down first, which TLS can't do before its close_notify
+     */
+    private static void linger(SocketChannel channel, boolean plaintext) {
+        Socket socket = channel.socket();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+        try {
+            if (plaintext) {
+                // tells the client we're done, so one that's paying attention stops sending
+                channel.shutdownOutput();
+            }
+            // not closed after, as that would close the channel too
+            InputStream in = socket.getInputStream();
+            byte[] discard = new byte[8192];
+            long drained = 0;
+            while (drained < LINGER_MAX_BYTES) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    break;
+                }
+                socket.setSoTimeout((int) remainingMillis);
+                int read = in.read(discard);
+                if (read == -1) {
+                    break;
+                }
+                drained += read;
+            }
+        } catch (IOException e) {
+            // timed out or the client went away, either way it's time to close
+        }
+    }
+
+    /**
+     * Writes the response's pre-encoded bytes, leaving the body off for HEAD requests and slipping in the headers that
+     * aren't part of the response itself: Date and friends on every response, CORS on cross-origin ones.
+     *
+     * @return bytes written
+     */
+    private int writeResponse(OutputStream out, Response response, Exchange exchange) throws IOException {
+        byte[] rendered = response.encode();
+        int headLength = response.headLength();
+        int length = exchange.method().equals("HEAD") ? headLength : rendered.length;
+        byte[] serverLines = HeaderLines.serverLines();
+
+        // the head ends with a blank line, so the extra headers go just before its CRLF
+        int headersEnd = headLength - 2;
+        out.write(rendered, 0, headersEnd);
+        out.write(serverLines);
+        int written = length + serverLines.length;
+        if (exchange.isCrossOrigin() && !response.headers().containsKey("Access-Control-Allow-Origin")) {
+            out.write(corsResponseHeaders);
+            written += corsResponseHeaders.length;
+        }
+        out.write(rendered, headersEnd, length - headersEnd);
+        return written;
+    }
+
+    /**
+     * Opens the listening channels. With SO_REUSEPORT each acceptor gets its own listening socket on the same port,
+     * and the kernel load-balances incoming connections between them; otherwise every acceptor shares one socket.
+     */
+    private List<ServerSocketChannel> openListeners(int port, int acceptors) throws IOException {
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        try {
+            ServerSocketChannel first = ServerSocketChannel.open();
+            channels.add(first);
+            boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            bind(first, port);
+
+            for (int i = 1; i < acceptors; i++) {
+                if (reusePort) {
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    channels.add(channel);
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    bind(channel, port);
+                } else {
+                    channels.add(first); // accept() on a shared channel is thread-safe, just not parallel
                 }
             }
+
+            if (acceptors > 1 && !reusePort) {
+                Log.warn("SO_REUSEPORT is not supported here, %d acceptors will share one listening socket", acceptors);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        return channels;
+    }
+
+    private void bind(ServerSocketChannel channel, int port) throws IOException {
+        SocketOptions options = socketOptions;
+        if (options.receiveBufferBytes() > 0) {
+            // has to be set before listening, as windows bigger than 64K are negotiated in the handshake
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, options.receiveBufferBytes());
+        }
+        channel.bind(new InetSocketAddress(port), options.backlog());
+    }
+
+    private static void configure(SocketChannel channel, SocketOptions options) {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, options.tcpNoDelay());
+            if (options.sendBufferBytes() > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, options.sendBufferBytes());
+            }
+        } catch (IOException e) {
+            // the connection still works with the defaults
+            Log.debug("Couldn't set socket options: %s", e.getMessage());
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel listener, ExecutorService clients) {
+        long backoffMillis = 0;
+        int failures = 0;
+        while (listener.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (ClosedChannelException e) {
+                return; // stop() was called
+            } catch (IOException e) {
+                // usually out of file descriptors, which retrying straight away won't fix, it'd just spin and flood
+                // the log while the connections we do have finish up and free some
+                if (failures++ == 0) {
+                    Log.error("Failed to accept connection: %s: %s", e.getClass().getName(), e.getMessage());
+                }
+                backoffMillis = Math.clamp(backoffMillis * 2, MIN_ACCEPT_BACKOFF_MILLIS, MAX_ACCEPT_BACKOFF_MILLIS);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            if (failures > 0) {
+                Log.warn("Accepting connections again after %d failed attempts", failures);
+                failures = 0;
+                backoffMillis = 0;
+            }
+
+            Exchange exchange = new Exchange(System.nanoTime());
+            openConnections.incrementAndGet();
+            clients.execute(() -> serveClient(channel, exchange));
+        }
+    }
+
+    public void start(int port) throws IOException {
+        start(port, 1);
+    }
+
+    /**
+     * Starts serving, and blocks until {@link #stop()} is called.
+     *
+     * @param acceptors number of threads accepting connections, each with its own listening socket where the OS
+     *                  supports SO_REUSEPORT, so that accepting isn't a serialisation point on multi-core machines
+     */
+    public void start(int port, int acceptors) throws IOException {
+        List<ServerSocketChannel> channels = openListeners(port, Math.max(1, acceptors));
+        listeners.addAll(channels);
+
+        try (
+            // one virtual thread per connection, so a handler parked on a long-poll doesn't hold up accept()
+            // or pin a platform thread while it waits
+            ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()
+        ) {
+            onReady(channels.get(0).socket());
+
+            List<Thread> acceptorThreads = new ArrayList<>();
+            for (int i = 1; i < channels.size(); i++) {
+                ServerSocketChannel channel = channels.get(i);
+                Thread thread = new Thread(() -> acceptLoop(channel, clients), "acceptor-" + i);
+                acceptorThreads.add(thread);
+                thread.start();
+            }
+
+            // the calling thread is acceptor 0
+            acceptLoop(channels.get(0), clients);
+
+            for (Thread thread : acceptorThreads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops accepting new connections. Connections already accepted are served to completion.
+     */
+    public void stop() {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                Log.warn("Failed to close listener: %s: %s", e.getClass().getName(), e.getMessage());
+            }
         }
     }
 }
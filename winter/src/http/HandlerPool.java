@@ -0,0 +1,289 @@
+package http;
+
+import logging.Log;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs route handlers on a pool of platform threads that sizes itself to the load it sees.
+ * <p>
+ * Once a second it works out how many handlers were running on average over the last interval, which by Little's law
+ * is the arrival rate times the mean service time (L = λW), and sizes the pool so that many would keep its threads
+ * about 75% busy, within the configured bounds. If requests are queueing it grows regardless, as then the arrival rate
+ * it measured is capped by how fast the pool was getting through them. It grows straight away but only shrinks by one
+ * thread per interval, so a brief lull doesn't throw away threads that are about to be needed again.
+ * <p>
+ * Only CPU-bound handlers (rendering JSON and the like) go through the pool, where a bound on threads stops them from
+ * all fighting over the cores at once. Blocking handlers stay on their connection's virtual thread, where waiting is
+ * free and a pool would only cap how many clients get to wait at a time. Both kinds are measured, so the metrics show
+ * what each is doing.
+ */
+public class HandlerPool implements AutoCloseable {
+    public enum Workload { CPU_BOUND, BLOCKING }
+
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double TARGET_UTILISATION = 0.75;
+
+    /**
+     * What one kind of handler did over the last interval. The raw counters are cumulative; the tuner turns them into
+     * rates once per interval.
+     */
+    public static final class Stats {
+        private final LongAdder arrivals = new LongAdder();
+        private final LongAdder completions = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+
+        // last values the tuner saw, only touched by the tuner thread
+        private long lastArrivals;
+        private long lastCompletions;
+        private long lastBusyNanos;
+
+        private volatile double arrivalRate;
+        private volatile double meanServiceNanos;
+        private volatile double concurrency;
+
+        private void completed(long nanos) {
+            busyNanos.add(nanos);
+            completions.increment();
+        }
+
+        private void update(double intervalNanos) {
+            long arrivals = this.arrivals.sum();
+            long completions = this.completions.sum();
+            long busyNanos = this.busyNanos.sum();
+
+            long completed = completions - lastCompletions;
+            arrivalRate = (arrivals - lastArrivals) / (intervalNanos / 1e9);
+            meanServiceNanos = completed == 0 ? 0 : (double) (busyNanos - lastBusyNanos) / completed;
+            // L = λW, from the total time handlers were busy rather than multiplying two averages together
+            concurrency = (busyNanos - lastBusyNanos) / intervalNanos;
+
+            lastArrivals = arrivals;
+            lastCompletions = completions;
+            lastBusyNanos = busyNanos;
+        }
+
+        public long handled() {
+            return completions.sum();
+        }
+
+        /**
+         * @return requests per second arriving over the last interval
+         */
+        public double arrivalRate() {
+            return arrivalRate;
+        }
+
+        public double meanServiceNanos() {
+            return meanServiceNanos;
+        }
+
+        /**
+         * @return average number of handlers running at once over the last interval
+         */
+        public double concurrency() {
+            return concurrency;
+        }
+    }
+
+    private record Bounds(int minThreads, int maxThreads) {
+        static Bounds of(int minThreads, int maxThreads) {
+            int max = maxThreads > 0 ? maxThreads : Runtime.getRuntime().availableProcessors();
+            return new Bounds(Math.max(1, Math.min(minThreads, max)), max);
+        }
+    }
+
+    // swapped whole by resize(), so the tuner never sees a new minimum with an old maximum
+    private volatile Bounds bounds;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService tuner;
+    private final Map<Workload, Stats> stats = new EnumMap<>(Workload.class);
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final LongAdder grown = new LongAdder();
+    private final LongAdder shrunk = new LongAdder();
+    private volatile int targetThreads;
+    private long lastTuneNanos = System.nanoTime();
+
+    /**
+     * @param maxThreads most threads to run CPU-bound handlers on, 0 for one per core
+     */
+    public HandlerPool(int minThreads, int maxThreads) {
+        this.bounds = Bounds.of(minThreads, maxThreads);
+        this.targetThreads = bounds.minThreads();
+
+        for (Workload workload : Workload.values()) {
+            stats.put(workload, new Stats());
+        }
+
+        executor = new ThreadPoolExecutor(
+            bounds.minThreads(), bounds.minThreads(), 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "handler-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        tuner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handler-pool-tuner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        tuner.scheduleAtFixedRate(this::tune, INTERVAL_NANOS, INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs a handler and waits for its response. CPU-bound handlers run on the pool, blocking ones on the caller.
+     */
+    public Response call(Workload workload, Supplier<Response> handler) {
+        Stats stats = this.stats.get(workload);
+        stats.arrivals.increment();
+        if (workload == Workload.BLOCKING) {
+            return timed(stats, handler);
+        }
+
+        Future<Response> future;
+        try {
+            future = executor.submit(() -> timed(stats, handler));
+        } catch (RejectedExecutionException e) {
+            // shutting down, finish what's already been accepted
+            return timed(stats, handler);
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return Response.HttpCatResponse(503);
+        } catch (ExecutionException e) {
+            // the handler threw, so throw it again here as if it had run on this thread
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Response timed(Stats stats, Supplier<Response> handler) {
+        long start = System.nanoTime();
+        try {
+            return handler.get();
+        } finally {
+            stats.completed(System.nanoTime() - start);
+        }
+    }
+
+    private void tune() {
+        long now = System.nanoTime();
+        double intervalNanos = now - lastTuneNanos;
+        lastTuneNanos = now;
+        for (Stats workloadStats : stats.values()) {
+            workloadStats.update(intervalNanos);
+        }
+
+        Stats cpu = stats.get(Workload.CPU_BOUND);
+        int current = executor.getMaximumPoolSize();
+        int target = (int) Math.ceil(cpu.concurrency() / TARGET_UTILISATION);
+        if (!executor.getQueue().isEmpty()) {
+            target = Math.max(target, current + 1);
+        }
+        Bounds bounds = this.bounds;
+        target = Math.max(bounds.minThreads(), Math.min(bounds.maxThreads(), target));
+        targetThreads = target;
+
+        int next = target >= current ? target : current - 1;
+        if (next == current) {
+            return;
+        }
+        if (next > current) {
+            executor.setMaximumPoolSize(next);
+            executor.setCorePoolSize(next);
+            grown.increment();
+        } else {
+            // idle threads beyond the new size time out and exit
+            executor.setCorePoolSize(next);
+            executor.setMaximumPoolSize(next);
+            shrunk.increment();
+        }
+        Log.debug(
+            "Handler pool %d -> %d threads (%.1f req/s x %.2fms = %.2f busy)",
+            current, next, cpu.arrivalRate(), cpu.meanServiceNanos() / 1e6, cpu.concurrency()
+        );
+    }
+
+    public Stats stats(Workload workload) {
+        return stats.get(workload);
+    }
+
+    /**
+     * @return threads the pool is currently sized for
+     */
+    public int size() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return threads the last interval's load called for, which the pool is heading towards
+     */
+    public int targetSize() {
+        return targetThreads;
+    }
+
+    public int minSize() {
+        return bounds.minThreads();
+    }
+
+    public int maxSize() {
+        return bounds.maxThreads();
+    }
+
+    /**
+     * Changes the bounds the pool is resized between. The pool moves into them at the next tuning: straight away when
+     * growing, a thread per interval when shrinking, same as it would for a change in load.
+     *
+     * @param maxThreads 0 for one per core
+     */
+    public void resize(int minThreads, int maxThreads) {
+        this.bounds = Bounds.of(minThreads, maxThreads);
+    }
+
+    public int activeThreads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return CPU-bound handlers waiting for a thread
+     */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    public long timesGrown() {
+        return grown.sum();
+    }
+
+    public long timesShrunk() {
+        return shrunk.sum();
+    }
+
+    @Override
+    public void close() {
+        tuner.shutdownNow();
+        executor.shutdown();
+    }
+}
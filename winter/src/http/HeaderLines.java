@@ -0,0 +1,121 @@
+package http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bits of response heads encoded to bytes ahead of time: status lines, header lines that turn up on response after
+ * response, and the Date, Server and Connection lines that go on every response this server sends. Rendering a head
+ * is then mostly a matter of copying arrays about.
+ */
+final class HeaderLines {
+    static final byte[] CRLF = {'\r', '\n'};
+
+    private static final String SERVER = "SnowMon";
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+
+    // https://www.rfc-editor.org/rfc/rfc9110.html#name-date-time-formats
+    // RFC_1123_DATE_TIME would drop the leading zero on the day, which IMF-fixdate doesn't allow
+    private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH)
+        .withZone(ZoneOffset.UTC);
+
+    // header name -> value -> "name: value\r\n", looked up in two steps so nothing has to be concatenated first
+    private static final Map<String, Map<String, byte[]>> COMMON = new HashMap<>();
+    private static final Map<Integer, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+
+    static {
+        common(
+            "Content-Type",
+            "application/json", "text/html", "text/html; charset=utf-8", "text/css; charset=utf-8",
+            "text/javascript; charset=utf-8", "text/plain; version=0.0.4; charset=utf-8"
+        );
+        common("Vary", "Accept", "Origin");
+        common("Connection", "close", "keep-alive");
+    }
+
+    private record ServerLines(long epochSecond, byte[] bytes) {}
+
+    private static volatile ServerLines serverLines = encodeServerLines(currentSecond());
+
+    private HeaderLines() {}
+
+    private static void common(String name, String... values) {
+        Map<String, byte[]> lines = COMMON.computeIfAbsent(name, key -> new HashMap<>());
+        for (String value : values) {
+            lines.put(value, encode(name, value));
+        }
+    }
+
+    private static byte[] encode(String name, String value) {
+        return (name + ": " + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes {@code HTTP/1.1 <code> <message>\r\n}.
+     */
+    static void writeStatusLine(ByteArrayOutputStream out, int statusCode, String message) {
+        // https://www.rfc-editor.org/rfc/rfc9112.html#name-status-line
+        out.writeBytes(STATUS_LINES.computeIfAbsent(
+            statusCode, code -> ("HTTP/1.1 " + code + " " + message + "\r\n").getBytes(StandardCharsets.UTF_8)
+        ));
+    }
+
+    static void writeHeader(ByteArrayOutputStream out, String name, String value) {
+        Map<String, byte[]> values = COMMON.get(name);
+        byte[] line = values == null ? null : values.get(value);
+        out.writeBytes(line != null ? line : encode(name, value));
+    }
+
+    static void writeContentLength(ByteArrayOutputStream out, long length) {
+        out.writeBytes(CONTENT_LENGTH);
+        // digits straight into the output rather than via Long.toString
+        long divisor = 1;
+        while (divisor <= length / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write((int) ('0' + length / divisor % 10));
+        }
+        out.writeBytes(CRLF);
+    }
+
+    /**
+     * The lines every response gets as it's written: the current Date, Server, and Connection: close, as each
+     * connection carries a single request. Date only has one-second resolution, so the lines are formatted at most
+     * once a second, by whichever request first notices the second has changed, rather than by a timer ticking away
+     * when there's nobody to serve.
+     */
+    static byte[] serverLines() {
+        long second = currentSecond();
+        ServerLines current = serverLines;
+        if (current.epochSecond() != second) {
+            // two requests racing here just both format the same date
+            current = encodeServerLines(second);
+            serverLines = current;
+        }
+        return current.bytes();
+    }
+
+    private static long currentSecond() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static ServerLines encodeServerLines(long epochSecond) {
+        String date = IMF_FIXDATE.format(Instant.ofEpochSecond(epochSecond));
+        byte[] bytes = ("Date: " + date + "\r\nServer: " + SERVER + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] connection = COMMON.get("Connection").get("close");
+
+        byte[] lines = new byte[bytes.length + connection.length];
+        System.arraycopy(bytes, 0, lines, 0, bytes.length);
+        System.arraycopy(connection, 0, lines, bytes.length, connection.length);
+        return new ServerLines(epochSecond, lines);
+    }
+}
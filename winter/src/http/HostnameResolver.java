@@ -0,0 +1,168 @@
+package http;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reverse DNS lookups that never hold anyone up. {@link InetAddress#getHostName()} blocks for as long as the resolver
+ * takes, which with an unhelpful nameserver can be seconds, so lookups run on a few threads of their own with a
+ * bounded queue, and callers get a future instead of a name.
+ * <p>
+ * Names (and addresses without one, which are the slow ones to look up) are cached for a while. Concurrent lookups
+ * of the same address share one query. When the queue is full, or a lookup takes longer than the timeout, the future
+ * completes with the bare IP address instead - a lookup that times out still gets cached when it does finish, as
+ * there's no cancelling one once the resolver has it.
+ */
+public final class HostnameResolver implements AutoCloseable {
+    private record Entry(String hostname, long expiresNanos) {}
+
+    private final ThreadPoolExecutor executor;
+    private final long ttlNanos;
+    private final long timeoutNanos;
+    private final int maxEntries;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param threads    lookups run at once
+     * @param queueSize  lookups waiting for a thread, any more get the IP address straight away
+     * @param ttl        how long names are remembered for
+     * @param timeout    how long a caller waits for a name before settling for the IP address
+     * @param maxEntries upper bound on addresses cached at once
+     */
+    public HostnameResolver(int threads, int queueSize, Duration ttl, Duration timeout, int maxEntries) {
+        if (threads < 1 || queueSize < 1 || maxEntries < 1) {
+            throw new IllegalArgumentException("Hostname resolver needs at least one thread, queue slot and entry");
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+        this.maxEntries = maxEntries;
+        this.executor = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+            runnable -> {
+                Thread thread = new Thread(runnable, "dns-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+    }
+
+    /**
+     * @return the address's hostname, or its IP address if it hasn't got one or it couldn't be found in time. Never
+     * completes exceptionally.
+     */
+    public CompletableFuture<String> resolve(InetAddress address) {
+        String ip = address.getHostAddress();
+        Entry entry = cache.get(ip);
+        if (entry != null && System.nanoTime() - entry.expiresNanos() < 0) {
+            hits.increment();
+            return CompletableFuture.completedFuture(entry.hostname());
+        }
+
+        CompletableFuture<String> lookup = inFlight.get(ip);
+        if (lookup == null) {
+            CompletableFuture<String> mine = new CompletableFuture<>();
+            lookup = inFlight.putIfAbsent(ip, mine);
+            if (lookup == null) {
+                lookup = mine;
+                start(address, ip, mine);
+            }
+        }
+
+        return lookup.copy()
+            .completeOnTimeout(null, timeoutNanos, TimeUnit.NANOSECONDS)
+            .thenApply(hostname -> {
+                if (hostname == null) {
+                    timeouts.increment();
+                    return ip;
+                }
+                return hostname;
+            });
+    }
+
+    private void start(InetAddress address, String ip, CompletableFuture<String> lookup) {
+        try {
+            executor.execute(() -> {
+                lookups.increment();
+                String hostname;
+                try {
+                    // a fresh InetAddress, as one that already has a name hands it back without asking DNS
+                    hostname = InetAddress.getByAddress(address.getAddress()).getHostName();
+                } catch (Exception e) {
+                    hostname = ip;
+                }
+                remember(ip, hostname);
+                inFlight.remove(ip, lookup);
+                lookup.complete(hostname);
+            });
+        } catch (RejectedExecutionException e) {
+            // queue's full (or we're shutting down), which is what the IP address is for
+            rejected.increment();
+            inFlight.remove(ip, lookup);
+            lookup.complete(ip);
+        }
+    }
+
+    private void remember(String ip, String hostname) {
+        long now = System.nanoTime();
+        if (cache.size() >= maxEntries) {
+            cache.values().removeIf(entry -> now - entry.expiresNanos() >= 0);
+            if (cache.size() >= maxEntries) {
+                return; // all still fresh, so this one goes uncached rather than evicting a useful one
+            }
+        }
+        cache.put(ip, new Entry(hostname, now + ttlNanos));
+    }
+
+    public int cachedEntries() {
+        return cache.size();
+    }
+
+    /**
+     * @return lookups answered from the cache
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return lookups that actually went to DNS
+     */
+    public long lookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return callers that gave up waiting for a name, counted once per caller rather than per lookup
+     */
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return lookups skipped because the queue was full
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
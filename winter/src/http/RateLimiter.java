@@ -0,0 +1,178 @@
+package http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Per-client token bucket rate limiter, attached to routes with {@link Route#rateLimit}.
+ * <p>
+ * Each bucket is stored as a single "theoretical arrival time" and updated with compare-and-set (the GCRA formulation
+ * of a token bucket, see <a href="https://en.wikipedia.org/wiki/Generic_cell_rate_algorithm">GCRA</a>), so there are
+ * no locks and no background refill thread. Buckets are spread over striped maps with a fixed capacity each; a bucket
+ * that has refilled completely carries no information, so those are the ones evicted when a stripe fills up.
+ */
+public class RateLimiter {
+    /**
+     * Keys buckets by the client's IP address.
+     */
+    public static final Function<Request, String> BY_CLIENT_ADDRESS = Request::clientAddress;
+
+    private static final int STRIPES = 64;
+    // longest Retry-After we bother precomputing, anything above gets clamped
+    private static final int MAX_RETRY_AFTER_SECONDS = 60;
+    // a full stripe is swept at most this often, so a flood of new clients can't turn every request into a sweep
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Function<Request, String> keyFunction;
+    private final long emissionIntervalNanos;
+    private final long burstNanos;
+    private final int maxKeysPerStripe;
+
+    private final Map<String, AtomicLong>[] stripes;
+    private final AtomicLong[] nextSweepNanos = new AtomicLong[STRIPES];
+    // shared by new clients while their stripe is full of active ones, so memory stays bounded under a flood
+    private final AtomicLong overflow = new AtomicLong(System.nanoTime());
+
+    private final Response[] htmlRejections = new Response[MAX_RETRY_AFTER_SECONDS + 1];
+    private final Response[] jsonRejections = new Response[MAX_RETRY_AFTER_SECONDS + 1];
+
+    private final LongAdder allowedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * @param requestsPerSecond sustained rate each client is allowed
+     * @param burst             requests a client can make in one go after being idle
+     * @param maxKeys           upper bound on clients tracked at once
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RateLimiter(double requestsPerSecond, int burst, int maxKeys, Function<Request, String> keyFunction) {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate limit needs a positive rate and a burst of at least 1");
+        }
+        this.keyFunction = keyFunction;
+        this.emissionIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        this.burstNanos = emissionIntervalNanos * burst;
+        this.maxKeysPerStripe = Math.max(1, maxKeys / STRIPES);
+
+        this.stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ConcurrentHashMap<>();
+            nextSweepNanos[i] = new AtomicLong(System.nanoTime());
+        }
+
+        for (int seconds = 1; seconds <= MAX_RETRY_AFTER_SECONDS; seconds++) {
+            htmlRejections[seconds] = withRetryAfter(Response.HttpCatResponse(429), seconds);
+            jsonRejections[seconds] = withRetryAfter(Response.JSONErrorResponse(429), seconds);
+        }
+    }
+
+    public RateLimiter(double requestsPerSecond, int burst, int maxKeys) {
+        this(requestsPerSecond, burst, maxKeys, BY_CLIENT_ADDRESS);
+    }
+
+    private static Response withRetryAfter(Response base, int seconds) {
+        Response response = new Response(
+            base.statusCode(),
+            Map.of(
+                "Content-Type", base.headers().get("Content-Type"),
+                "Vary", "Accept",
+                "Retry-After", String.valueOf(seconds)
+            ),
+            base.body()
+        );
+        response.encode();
+        return response;
+    }
+
+    /**
+     * Takes a token for the request's client.
+     *
+     * @return null if the request may go ahead, otherwise the 429 to send back
+     */
+    Response acquire(Request request) {
+        String key = keyFunction.apply(request);
+        long waitNanos = tryAcquire(key == null ? "" : key, System.nanoTime());
+        if (waitNanos == 0) {
+            allowedCount.increment();
+            return null;
+        }
+
+        rejectedCount.increment();
+        // round up, clients retrying early would just get rejected again
+        long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        int index = (int) Math.min(seconds, MAX_RETRY_AFTER_SECONDS);
+
+        String accept = request.headers().get("Accept");
+        boolean json = accept != null && accept.contains("application/json");
+        return json ? jsonRejections[index] : htmlRejections[index];
+    }
+
+    /**
+     * @return 0 if a token was taken, otherwise how long until one is available
+     */
+    long tryAcquire(String key, long nowNanos) {
+        AtomicLong bucket = bucket(key, nowNanos);
+
+        while (true) {
+            long arrival = bucket.get();
+            long next = Math.max(arrival, nowNanos) + emissionIntervalNanos;
+            long excess = next - nowNanos - burstNanos;
+            if (excess > 0) {
+                return excess;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private AtomicLong bucket(String key, long nowNanos) {
+        int stripeIndex = (key.hashCode() & 0x7fffffff) % STRIPES;
+        Map<String, AtomicLong> stripe = stripes[stripeIndex];
+
+        AtomicLong bucket = stripe.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        if (stripe.size() >= maxKeysPerStripe && !sweep(stripeIndex, nowNanos)) {
+            return overflow;
+        }
+        // a fresh bucket is a full one
+        return stripe.computeIfAbsent(key, k -> new AtomicLong(nowNanos - burstNanos));
+    }
+
+    /**
+     * Evicts buckets that have refilled completely, as forgetting them changes nothing.
+     *
+     * @return whether the stripe has room now
+     */
+    private boolean sweep(int stripeIndex, long nowNanos) {
+        AtomicLong nextSweep = nextSweepNanos[stripeIndex];
+        long due = nextSweep.get();
+        if (nowNanos - due >= 0 && nextSweep.compareAndSet(due, nowNanos + SWEEP_INTERVAL_NANOS)) {
+            stripes[stripeIndex].values().removeIf(bucket -> bucket.get() <= nowNanos);
+        }
+        return stripes[stripeIndex].size() < maxKeysPerStripe;
+    }
+
+    public int trackedKeys() {
+        int total = 0;
+        for (Map<String, AtomicLong> stripe : stripes) {
+            total += stripe.size();
+        }
+        return total;
+    }
+
+    public long allowed() {
+        return allowedCount.sum();
+    }
+
+    public long rejected() {
+        return rejectedCount.sum();
+    }
+}
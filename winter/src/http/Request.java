@@ -1,19 +1,40 @@
 package http;
 
+import utils.UTF8;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
 public final class Request {
     private final String method;
     private final String path;
+    private final Map<String, String> queryParams;
     private final Map<String, String> headers;
-    private final String body;
+    // a body off the wire is kept as bytes (or in a temp file, if it was spooled) until somebody wants a string
+    private String body;
+    private byte[] bodyBytes = null;
+    private Path bodyFile = null;
+    private long bodyLength;
     private final Map<String, String> routeParams = new HashMap<>();
+    private String clientAddress = null;
 
     public Request(String method, String path, Map<String, String> headers, String body) {
+        this(method, path, Map.of(), headers, body);
+    }
+
+    public Request(String method, String path, Map<String, String> queryParams, Map<String, String> headers, String body) {
         this.method = method;
         this.path = path;
+        this.queryParams = queryParams;
         this.headers = headers;
         this.body = body;
+        this.bodyLength = UTF8.encodedLength(body);
     }
 
     public String method() {
@@ -28,10 +49,80 @@ public final class Request {
         return headers;
     }
 
+    /**
+     * The body as a string. For bodies that were spooled to disk this reads the whole file into memory, which is
+     * exactly what spooling was avoiding, so routes that spool should use {@link #bodyStream()} instead.
+     */
     public String body() {
+        if (body == null) {
+            if (bodyFile != null) {
+                try {
+                    body = Files.readString(bodyFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                body = new String(bodyBytes, StandardCharsets.UTF_8);
+            }
+        }
         return body;
     }
 
+    public InputStream bodyStream() throws IOException {
+        if (bodyFile != null) {
+            return Files.newInputStream(bodyFile);
+        }
+        return new ByteArrayInputStream(bodyBytes != null ? bodyBytes : body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return body size in bytes
+     */
+    public long bodyLength() {
+        return bodyLength;
+    }
+
+    void setBody(byte[] bytes) {
+        this.body = null;
+        this.bodyBytes = bytes;
+        this.bodyLength = bytes.length;
+    }
+
+    void setBody(Path file, long length) {
+        this.body = null;
+        this.bodyFile = file;
+        this.bodyLength = length;
+    }
+
+    /**
+     * Deletes the spooled body's temp file, if there is one.
+     */
+    void discardBody() throws IOException {
+        if (bodyFile != null) {
+            Files.deleteIfExists(bodyFile);
+        }
+    }
+
+    public Map<String, String> queryParams() {
+        return queryParams;
+    }
+
+    /**
+     * @return the client's IP address (forwarded by a trusted proxy, or else the peer's), or null for requests that
+     * didn't come off a socket
+     */
+    public String clientAddress() {
+        return clientAddress;
+    }
+
+    void setClientAddress(String clientAddress) {
+        this.clientAddress = clientAddress;
+    }
+
+    public String getQueryParam(String key) {
+        return queryParams.get(key);
+    }
+
     public String getRouteParam(String key) {
         return routeParams.get(key);
     }
@@ -0,0 +1,52 @@
+package http;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs the handler once for identical GET requests that arrive while it's already running, on routes that opt in
+ * with {@link Route#coalesce}, and gives every one of them the same response. Unlike {@link ResponseCache} nothing
+ * outlives the handler call: a request that arrives just after it finishes runs the handler afresh, so there's no TTL
+ * to tune and no stale data, but a herd of requests arriving at once (say, everyone refreshing as a drop opens) costs
+ * one handler call rather than one each.
+ * <p>
+ * Requests count as identical if their path, query and the route's vary headers match, same as for the cache.
+ */
+public class RequestCoalescer {
+    private final SingleFlight<String, Response> inFlight = new SingleFlight<>();
+
+    private final LongAdder leaderCount = new LongAdder();
+    private final LongAdder followerCount = new LongAdder();
+
+    Response run(Route route, Request request, Supplier<Response> handler) {
+        String key = ResponseCache.key(route, request);
+        if (inFlight.isInFlight(key)) {
+            followerCount.increment();
+        } else {
+            leaderCount.increment();
+        }
+
+        return inFlight.run(key, () -> {
+            Response response = handler.get();
+            if (response != null) {
+                // encoded once here, rather than by each waiter as it writes
+                response.encode();
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Requests that ran the handler.
+     */
+    public long leaders() {
+        return leaderCount.sum();
+    }
+
+    /**
+     * Requests that waited on another request's handler call instead of running their own.
+     */
+    public long followers() {
+        return followerCount.sum();
+    }
+}
@@ -0,0 +1,28 @@
+package http;
+
+/**
+ * How big the parts of a request are allowed to be before the server gives up on it, so that nobody can make it
+ * buffer arbitrary amounts of data.
+ *
+ * @param maxRequestLineBytes   longest request line, answered with 414 URI Too Long
+ * @param maxHeaderCount        most header fields, answered with 431 Request Header Fields Too Large
+ * @param maxHeaderBytes        total size of all header lines, also answered with 431
+ * @param maxBodyBytes          largest body, answered with 413 Content Too Large (unless the route spools bodies)
+ * @param spoolThresholdBytes   bodies above this are written to a temp file on routes that opt in to spooling
+ */
+public record RequestLimits(
+    int maxRequestLineBytes,
+    int maxHeaderCount,
+    int maxHeaderBytes,
+    int maxBodyBytes,
+    int spoolThresholdBytes
+) {
+    public static final RequestLimits DEFAULT = new RequestLimits(8 * 1024, 100, 16 * 1024, 1024 * 1024, 64 * 1024);
+
+    public RequestLimits {
+        if (maxRequestLineBytes < 1 || maxHeaderCount < 0 || maxHeaderBytes < 0 || maxBodyBytes < 0
+            || spoolThresholdBytes < 0) {
+            throw new IllegalArgumentException("Request limits can't be negative");
+        }
+    }
+}
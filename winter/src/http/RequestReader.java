@@ -0,0 +1,160 @@
+package http;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads requests off a connection as bytes, so that line lengths can be capped and bodies are measured in bytes
+ * (which is what Content-Length counts) rather than characters.
+ * <p>
+ * Reads go into a direct buffer borrowed from a {@link BufferPool}, which has to be handed back by closing the reader.
+ * The buffer is always in read mode: whatever is between its position and limit hasn't been read yet.
+ */
+final class RequestReader implements Closeable {
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private final ReadableByteChannel in;
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+    private byte[] line = new byte[256];
+    private long consumed = 0;
+    private long received = 0;
+
+    RequestReader(ReadableByteChannel in, BufferPool pool) {
+        this.in = in;
+        this.pool = pool;
+        this.buffer = pool.acquire(BUFFER_SIZE).flip();
+    }
+
+    /**
+     * Reads a line, ending in CRLF or a bare LF, without its line ending.
+     *
+     * @param maxBytes      longest the line may be, line ending included
+     * @param tooLongStatus status code to reject the request with if the line is longer
+     * @return the line, or null if the connection closed before it started
+     */
+    String readLine(int maxBytes, int tooLongStatus) throws IOException {
+        int length = 0;
+        while (true) {
+            if (!buffer.hasRemaining() && !fill()) {
+                if (length == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed mid-line");
+            }
+            if (length >= maxBytes) {
+                throw new RequestTooLargeException(tooLongStatus, "Line longer than " + maxBytes + " bytes");
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(line.length * 2, Math.max(maxBytes, line.length + 1)));
+            }
+
+            // copy a chunk out in one go and look for the newline there, as picking through a direct buffer a byte
+            // at a time is much slower than an array
+            int position = buffer.position();
+            int chunk = Math.min(buffer.remaining(), Math.min(maxBytes, line.length) - length);
+            buffer.get(position, line, length, chunk);
+            for (int i = length; i < length + chunk; i++) {
+                if (line[i] == '\n') {
+                    int taken = i - length + 1;
+                    buffer.position(position + taken);
+                    consumed += taken;
+                    int end = i > 0 && line[i - 1] == '\r' ? i - 1 : i;
+                    return new String(line, 0, end, StandardCharsets.UTF_8);
+                }
+            }
+            buffer.position(position + chunk);
+            consumed += chunk;
+            length += chunk;
+        }
+    }
+
+    /**
+     * Reads exactly {@code length} bytes.
+     */
+    byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int buffered = Math.min(length, buffer.remaining());
+        buffer.get(bytes, 0, buffered);
+
+        // the rest goes straight into the array rather than through the buffer
+        ByteBuffer rest = ByteBuffer.wrap(bytes, buffered, length - buffered);
+        while (rest.hasRemaining()) {
+            int read = in.read(rest);
+            if (read <= 0) {
+                break;
+            }
+            received += read;
+        }
+
+        int read = length - rest.remaining();
+        consumed += read;
+        if (read < length) {
+            throw new EOFException("Connection closed after " + read + " of " + length + " body bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies exactly {@code length} bytes to {@code out}.
+     */
+    void transferTo(WritableByteChannel out, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            if (!buffer.hasRemaining() && !fill()) {
+                throw new EOFException("Connection closed with " + remaining + " body bytes to go");
+            }
+            int chunk = (int) Math.min(remaining, buffer.remaining());
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + chunk);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.limit(limit);
+            consumed += chunk;
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * @return bytes taken from the connection so far, counting only what's been read out of the buffer
+     */
+    long consumed() {
+        return consumed;
+    }
+
+    /**
+     * @return bytes read off the connection so far, including any still sitting in the buffer
+     */
+    long received() {
+        return received;
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read = in.read(buffer);
+        buffer.flip();
+        if (read <= 0) {
+            return false;
+        }
+        received += read;
+        return true;
+    }
+
+    /**
+     * Hands the buffer back to the pool. Doesn't close the connection.
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
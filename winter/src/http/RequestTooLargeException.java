@@ -0,0 +1,17 @@
+package http;
+
+/**
+ * Thrown when some part of a request goes over its {@link RequestLimits}, carrying the status code to reply with.
+ */
+public class RequestTooLargeException extends RuntimeException {
+    private final int statusCode;
+
+    public RequestTooLargeException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+}
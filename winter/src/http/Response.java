@@ -1,82 +1,197 @@
 package http;
 
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-public record Response(int statusCode, Map<String, String> headers, String body) {
+/**
+ * An HTTP response. Responses are immutable once built (so don't modify the headers map you pass in!), which lets
+ * them be shared between requests and encoded only once.
+ */
+public final class Response {
     private static final Map<Integer, String> STATUS_CODE_MESSAGES = Map.ofEntries(
         // Some common HTTP status codes
         Map.entry(200, "OK"),
         Map.entry(201, "Created"),
         Map.entry(204, "No Content"),
         Map.entry(400, "Bad Request"),
+        Map.entry(403, "Forbidden"),
         Map.entry(404, "Not Found"),
         Map.entry(406, "Not Acceptable"),
         Map.entry(409, "Conflict"),
+        Map.entry(413, "Content Too Large"),
+        Map.entry(414, "URI Too Long"),
         Map.entry(415, "Unsupported Media Type"),
+        Map.entry(417, "Expectation Failed"),
         Map.entry(422, "Unprocessable Entity"),
-        Map.entry(500, "Internal Server Error")
+        Map.entry(429, "Too Many Requests"),
+        Map.entry(431, "Request Header Fields Too Large"),
+        Map.entry(500, "Internal Server Error"),
+        Map.entry(503, "Service Unavailable")
         // We haven't covered all of them but that's no bother!
         // According to the RFC 9112, reason-phrase is optional anyways :D
         // so a fallback of a dummy string will do
     );
 
+    // language=HTML
+    private static final String HTTP_CAT_TEMPLATE = """
+        <!DOCTYPE html>
+        <html lang="en">
+        <head>
+            <title>{code} {message}</title>
+            <style>
+                body {
+                    background-color: black;
+                    height: 100vh;
+                    display: flex;
+                    justify-content: center;
+                    align-items: center;
+                }
+
+                img {
+                    max-width: 100%;
+                    max-height: 100%;
+                }
+            </style>
+        </head>
+        <body>
+            <img src="https://http.cat/{code}" alt="{code} {message}">
+        </body>
+        </html>
+        """;
+
+    // error pages never change, so each one is rendered and encoded once and then handed out to everyone
+    private static final Map<Integer, Response> HTTP_CAT_RESPONSES = new ConcurrentHashMap<>();
+    private static final Map<Integer, Response> JSON_ERROR_RESPONSES = new ConcurrentHashMap<>();
+
+    static {
+        for (int statusCode : STATUS_CODE_MESSAGES.keySet()) {
+            if (statusCode >= 400) {
+                HttpCatResponse(statusCode).encode();
+                JSONErrorResponse(statusCode).encode();
+            }
+        }
+    }
+
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final String body;
+    // filled in on first write; a race just means encoding twice, which is harmless
+    private Encoded encoded;
+
+    private record Encoded(byte[] bytes, int headLength) {}
+
+    public Response(int statusCode, Map<String, String> headers, String body) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        // 204 No Content means exactly that, even for cat pictures
+        this.body = statusCode == 204 ? "" : body;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+
+    public Map<String, String> headers() {
+        return headers;
+    }
+
+    public String body() {
+        return body;
+    }
+
     public static Response HttpCatResponse(int statusCode) {
-        // language=HTML
-        String html = """
-            <!DOCTYPE html>
-            <html lang="en">
-            <head>
-                <title>{code} {message}</title>
-                <style>
-                    body {
-                        background-color: black;
-                        height: 100vh;
-                        display: flex;
-                        justify-content: center;
-                        align-items: center;
-                    }
-
-                    img {
-                        max-width: 100%;
-                        max-height: 100%;
-                    }
-                </style>
-            </head>
-            <body>
-                <img src="https://http.cat/{code}" alt="{code} {message}">
-            </body>
-            </html>
-            """
-            .replaceAll("\\{code\\}", String.valueOf(statusCode))
-            .replaceAll("\\{message\\}", STATUS_CODE_MESSAGES.getOrDefault(statusCode, "Response"));
-
-        return new Response(statusCode, Map.of("Content-Type", "text/html"), html);
+        return HTTP_CAT_RESPONSES.computeIfAbsent(statusCode, code -> {
+            String message = STATUS_CODE_MESSAGES.getOrDefault(code, "Response");
+            String html = HTTP_CAT_TEMPLATE
+                .replace("{code}", String.valueOf(code))
+                .replace("{message}", message);
+            return new Response(code, Map.of("Content-Type", "text/html", "Vary", "Accept"), html);
+        });
+    }
+
+    /**
+     * Content-negotiated error response: API clients that ask for JSON get a JSON body instead of a cat picture.
+     */
+    public static Response HttpCatResponse(int statusCode, Request request) {
+        String accept = request.headers().get("Accept");
+        if (accept != null && accept.contains("application/json")) {
+            return JSONErrorResponse(statusCode);
+        }
+        return HttpCatResponse(statusCode);
+    }
+
+    public static Response JSONErrorResponse(int statusCode) {
+        return JSON_ERROR_RESPONSES.computeIfAbsent(statusCode, code -> new Response(
+            code,
+            Map.of("Content-Type", "application/json", "Vary", "Accept"),
+            String.format(
+                """
+                {
+                    "status": %d,
+                    "error": "%s",
+                    "cat": "https://http.cat/%d"
+                }
+                """.trim(),
+                code,
+                STATUS_CODE_MESSAGES.getOrDefault(code, "Response"),
+                code
+            )
+        ));
     }
 
     public String getStatusMessage() {
         return STATUS_CODE_MESSAGES.getOrDefault(statusCode, "Unknown");
     }
 
+    /**
+     * @return the response as text, as it's written to the socket minus the headers added per connection
+     */
     public String render() {
-        // add Content-Length header based on body
-        Map<String, String> patchedHeaders = new HashMap<>(headers);
-        patchedHeaders.put("Content-Length", String.valueOf(body.getBytes().length));
-
-        // https://www.rfc-editor.org/rfc/rfc9112.html#name-status-line
-        // http 1.1 is the only real http version, everything else is a conspiracy theory
-        // it's now 7:24am and my sleep deprived brain is losing it can you tell
-        StringBuilder response = new StringBuilder("HTTP/1.1 ")
-            .append(statusCode).append(" ").append(getStatusMessage())
-            .append("\r\n");  // HTTP spec wants CRLF specifically
-
-        for (Map.Entry<String, String> header : patchedHeaders.entrySet()) {
-            response.append(header.getKey()).append(": ")
-                .append(header.getValue()).append("\r\n");
+        return new String(encode(), StandardCharsets.UTF_8);
+    }
+
+    private Encoded encoded() {
+        Encoded result = encoded;
+        if (result == null) {
+            byte[] content = body.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+
+            // http 1.1 is the only real http version, everything else is a conspiracy theory
+            // it's now 7:24am and my sleep deprived brain is losing it can you tell
+            HeaderLines.writeStatusLine(head, statusCode, getStatusMessage());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                HeaderLines.writeHeader(head, header.getKey(), header.getValue());
+            }
+            // add Content-Length header based on body, unless it's been given explicitly (e.g. for HEAD responses)
+            // 204s mustn't have one at all: https://www.rfc-editor.org/rfc/rfc9110.html#name-content-length
+            if (statusCode != 204 && !headers.containsKey("Content-Length")) {
+                HeaderLines.writeContentLength(head, content.length);
+            }
+            head.writeBytes(HeaderLines.CRLF); // HTTP spec wants CRLF specifically
+
+            byte[] headBytes = head.toByteArray();
+            byte[] bytes = new byte[headBytes.length + content.length];
+            System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+            System.arraycopy(content, 0, bytes, headBytes.length, content.length);
+            result = new Encoded(bytes, headBytes.length);
+            encoded = result;
         }
+        return result;
+    }
 
-        response.append("\r\n").append(body);
+    /**
+     * @return the rendered response as bytes, ready to write to the socket
+     */
+    public byte[] encode() {
+        return encoded().bytes();
+    }
 
-        return response.toString();
+    /**
+     * @return how many bytes at the start of {@link #encode()} are the status line and headers
+     */
+    int headLength() {
+        return encoded().headLength();
     }
 }
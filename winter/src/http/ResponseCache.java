@@ -0,0 +1,136 @@
+package http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived cache for GET handler responses on routes that opt in with {@link Route#cache}.
+ * <p>
+ * Entries are keyed by path, query and the values of the route's vary headers, expire after the route's TTL, and are
+ * evicted least-recently-used once the cache is full. Concurrent misses for the same key are collapsed, so only one
+ * of them runs the handler.
+ */
+public class ResponseCache {
+    private record Entry(Response response, long expiresAtNanos) {}
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    // ReentrantLock rather than synchronized, so virtual threads don't pin their carrier on it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SingleFlight<String, Response> misses = new SingleFlight<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    public ResponseCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        // access-ordered, so iteration order is least-recently-used first
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+    }
+
+    static String key(Route route, Request request) {
+        StringBuilder key = new StringBuilder(request.path());
+        if (!request.queryParams().isEmpty()) {
+            // sorted so that ?a=1&b=2 and ?b=2&a=1 share an entry
+            key.append('?').append(new TreeMap<>(request.queryParams()));
+        }
+        for (String header : route.varyHeaders()) {
+            key.append('\n').append(header).append(": ").append(request.headers().getOrDefault(header, ""));
+        }
+        return key.toString();
+    }
+
+    Response get(Route route, Request request, Supplier<Response> handler) {
+        String key = key(route, request);
+
+        Response cached = lookup(key);
+        if (cached != null) {
+            hitCount.increment();
+            return cached;
+        }
+
+        if (misses.isInFlight(key)) {
+            coalescedCount.increment();
+        } else {
+            missCount.increment();
+        }
+
+        return misses.run(key, () -> {
+            // somebody may have filled the entry between our lookup and winning the race
+            Response filled = lookup(key);
+            if (filled != null) {
+                return filled;
+            }
+
+            Response response = handler.get();
+            // only cache successes, so that e.g. a transient error doesn't stick around
+            if (response != null && response.statusCode() == 200) {
+                store(key, response, System.nanoTime() + route.cacheTtlNanos());
+            }
+            return response;
+        });
+    }
+
+    private Response lookup(String key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expiresAtNanos() >= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.response();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(String key, Response response, long expiresAtNanos) {
+        lock.lock();
+        try {
+            entries.put(key, new Entry(response, expiresAtNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long hits() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Misses that ran the handler.
+     */
+    public long misses() {
+        return missCount.sum();
+    }
+
+    /**
+     * Misses that waited on another request's handler call instead of running their own.
+     */
+    public long coalesced() {
+        return coalescedCount.sum();
+    }
+}
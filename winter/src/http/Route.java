@@ -1,24 +1,185 @@
 package http;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 
-@SuppressWarnings("ClassCanBeRecord")
 public class Route {
+    private static final String[] NO_HEADERS = new String[0];
+
     private final String method;
+    private final String path;
     private final String[] pathSegments;
 
+    // per-route options, set while registering routes
+    private long cacheTtlNanos = 0;
+    private boolean coalesced = false;
+    private String[] varyHeaders = NO_HEADERS;
+    private RateLimiter rateLimiter = null;
+    private long maxSpooledBodyBytes = 0;
+    private HandlerPool.Workload workload = HandlerPool.Workload.CPU_BOUND;
+    private final List<Precondition> preconditions = new ArrayList<>();
+
+    private record Precondition(Predicate<Request> check, int statusCode) {}
+
     public Route(String method, String path) {
         this.method = method;
+        this.path = path;
         this.pathSegments = path.split("/");
     }
 
+    public String method() {
+        return method;
+    }
+
+    /**
+     * The path template this route was registered with, including any {@code :param} segments.
+     */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * Caches this route's successful responses for the given time. Only applies to GET routes.
+     *
+     * @param varyHeaders request headers that affect the response, and so must be part of the cache key
+     */
+    public Route cache(Duration ttl, String... varyHeaders) {
+        if (!method.equals("GET")) {
+            throw new IllegalStateException("Only GET routes can be cached: " + method + " " + path);
+        }
+        this.cacheTtlNanos = ttl.toNanos();
+        this.varyHeaders = varyHeaders.clone();
+        return this;
+    }
+
+    public boolean isCached() {
+        return cacheTtlNanos > 0;
+    }
+
+    long cacheTtlNanos() {
+        return cacheTtlNanos;
+    }
+
+    /**
+     * Has concurrent identical requests to this route share one handler call, see {@link RequestCoalescer}. Only
+     * applies to GET routes, and only while the route isn't cached, as the cache already collapses its misses.
+     *
+     * @param varyHeaders request headers that affect the response, and so must match for requests to share one
+     */
+    public Route coalesce(String... varyHeaders) {
+        if (!method.equals("GET")) {
+            throw new IllegalStateException("Only GET routes can be coalesced: " + method + " " + path);
+        }
+        this.coalesced = true;
+        this.varyHeaders = varyHeaders.clone();
+        return this;
+    }
+
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    String[] varyHeaders() {
+        return varyHeaders;
+    }
+
+    /**
+     * Rate limits this route. Limiters can be shared between routes, to give them one budget.
+     */
+    public Route rateLimit(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    RateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Adds a check that runs on the request line and headers, before the body is read. Requests failing it get the
+     * given status code straight away, without their body ever being read (or, with {@code Expect: 100-continue},
+     * even sent). Checks run in the order they're added, and can't look at the body.
+     */
+    public Route require(Predicate<Request> check, int statusCode) {
+        preconditions.add(new Precondition(check, statusCode));
+        return this;
+    }
+
+    /**
+     * Decides whether a request gets to send its body and reach the handler.
+     *
+     * @return null to let the request through, otherwise the response to reject it with
+     */
+    Response admit(Request request) {
+        // rate limiting goes first, it's the cheapest way to turn away a flood
+        if (rateLimiter != null) {
+            Response rejection = rateLimiter.acquire(request);
+            if (rejection != null) {
+                return rejection;
+            }
+        }
+
+        for (Precondition precondition : preconditions) {
+            if (!precondition.check().test(request)) {
+                return Response.HttpCatResponse(precondition.statusCode(), request);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Accepts bodies of up to {@code maxBodyBytes} on this route, writing any over the server's spool threshold to a
+     * temp file rather than holding them in memory. Handlers should read them with {@link Request#bodyStream()}.
+     */
+    public Route spoolBodies(long maxBodyBytes) {
+        this.maxSpooledBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    boolean spoolsBodies() {
+        return maxSpooledBodyBytes > 0;
+    }
+
+    long maxSpooledBodyBytes() {
+        return maxSpooledBodyBytes;
+    }
+
+    /**
+     * Marks this route's handler as one that waits (long-polls, sleeps, locks), so it runs on its connection's own
+     * thread instead of taking up one of the {@link HandlerPool}'s.
+     */
+    public Route blocking() {
+        this.workload = HandlerPool.Workload.BLOCKING;
+        return this;
+    }
+
+    HandlerPool.Workload workload() {
+        return workload;
+    }
+
     public boolean matches(Request request) {
-        // compare methods
-        if (!request.method().equals(method)) return false;
+        // compare methods, HEAD is just GET without the body so GET routes answer it too
+        if (!request.method().equals(method) && !(method.equals("GET") && request.method().equals("HEAD"))) {
+            return false;
+        }
+
+        return matchPath(request.path(), request);
+    }
 
+    /**
+     * @return whether the path matches, whatever the method
+     */
+    boolean matchesPath(String path) {
+        return matchPath(path, null);
+    }
+
+    private boolean matchPath(String path, Request request) {
         // compare paths
-        String[] requestPath = request.path().split("/");
+        String[] requestPath = path.split("/");
         if (requestPath.length != pathSegments.length) return false;
 
         Map<String, String> routeParams = new HashMap<>();
@@ -31,8 +192,10 @@ public class Route {
         }
 
         // at this point the request should match the route
-        for (Map.Entry<String, String> routeParam : routeParams.entrySet()) {
-            request.setRouteParam(routeParam.getKey(), routeParam.getValue());
+        if (request != null) {
+            for (Map.Entry<String, String> routeParam : routeParams.entrySet()) {
+                request.setRouteParam(routeParam.getKey(), routeParam.getValue());
+            }
         }
         return true;
     }
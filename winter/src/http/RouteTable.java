@@ -0,0 +1,47 @@
+package http;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Routes and their handlers, matched in the order they were added. A table is filled in with {@link #route} and then
+ * handed to {@link HTTPServer#replaceRoutes} in one go, after which it mustn't be touched again: requests read the
+ * server's table once, and keep using it to the end even if it's been replaced in the meantime.
+ */
+public final class RouteTable {
+    private final Map<Route, Function<Request, Response>> handlers = new LinkedHashMap<>();
+
+    public RouteTable() {}
+
+    private RouteTable(RouteTable original) {
+        handlers.putAll(original.handlers);
+    }
+
+    /**
+     * @return the new route, for setting per-route options
+     */
+    public Route route(String method, String path, Function<Request, Response> handler) {
+        Route route = new Route(method, path);
+        handlers.put(route, handler);
+        return route;
+    }
+
+    RouteTable copy() {
+        return new RouteTable(this);
+    }
+
+    Set<Route> routes() {
+        return Collections.unmodifiableSet(handlers.keySet());
+    }
+
+    Function<Request, Response> handler(Route route) {
+        return handlers.get(route);
+    }
+
+    public int size() {
+        return handlers.size();
+    }
+}
@@ -0,0 +1,52 @@
+package http;
+
+/**
+ * TCP settings for the listening and accepted sockets, and when responses are pushed out to them. Zero sizes leave the
+ * operating system's defaults alone.
+ *
+ * @param tcpNoDelay         disables Nagle's algorithm, so small writes go out straight away instead of waiting for
+ *                           the previous segment to be acknowledged
+ * @param sendBufferBytes    SO_SNDBUF for each connection, 0 for the OS default (which it tunes itself on Linux)
+ * @param receiveBufferBytes SO_RCVBUF, set on the listening socket so connections inherit it from the handshake
+ * @param backlog            connections the OS queues up waiting to be accepted, 0 for the JDK default of 50
+ * @param writePolicy        whether a response is written in one go or a piece at a time
+ */
+public record SocketOptions(
+    boolean tcpNoDelay,
+    int sendBufferBytes,
+    int receiveBufferBytes,
+    int backlog,
+    WritePolicy writePolicy
+) {
+    public enum WritePolicy {
+        /**
+         * Collects the whole response (status line, headers, body) and writes it with as few syscalls as possible,
+         * so it leaves in as few packets as possible.
+         */
+        COALESCE,
+        /**
+         * Writes every piece of the response to the socket as soon as it's produced.
+         */
+        IMMEDIATE;
+
+        public static WritePolicy parse(String name, WritePolicy defaultPolicy) {
+            try {
+                return WritePolicy.valueOf(name.strip().toUpperCase());
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return defaultPolicy;
+            }
+        }
+    }
+
+    // what the JDK would do anyway, except for Nagle, which only ever delays a server that writes whole responses
+    public static final SocketOptions DEFAULT = new SocketOptions(true, 0, 0, 0, WritePolicy.COALESCE);
+
+    public SocketOptions {
+        if (sendBufferBytes < 0 || receiveBufferBytes < 0 || backlog < 0) {
+            throw new IllegalArgumentException("Socket buffer sizes and backlog can't be negative");
+        }
+        if (writePolicy == null) {
+            throw new IllegalArgumentException("Write policy is required");
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package http;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Terminates TLS on a blocking {@link SocketChannel} using an {@link SSLEngine}, exposing the decrypted connection as
+ * a plain channel so the rest of the server doesn't need to care.
+ * <p>
+ * Buffer modes, to keep everyone sane:
+ * {@code netIn} is always in write mode (filled from the socket), {@code appIn} is always in read mode (drained by the
+ * reader), and {@code netOut} is only used within a single wrap-and-flush.
+ */
+final class TLSConnection implements ByteChannel {
+    // big enough for any TLS record plus overhead, so the engine should never ask for more
+    static final int PACKET_BUFFER_SIZE = 17 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool buffers;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean closed = false;
+
+    TLSConnection(SocketChannel channel, SSLEngine engine, BufferPool buffers) {
+        this.channel = channel;
+        this.engine = engine;
+        this.buffers = buffers;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+        this.netIn = buffers.acquire(packetSize);
+        this.netOut = buffers.acquire(packetSize);
+        this.appIn = buffers.acquire(applicationSize).flip();
+    }
+
+    void handshake() throws IOException {
+        engine.beginHandshake();
+        continueHandshake(engine.getHandshakeStatus());
+    }
+
+    private void continueHandshake(HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                }
+                case NEED_WRAP -> status = wrap(EMPTY);
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !readFromChannel()) {
+                        throw new EOFException("Connection closed during TLS handshake");
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS engine closed during handshake");
+                    }
+                    status = engine.getHandshakeStatus();
+                }
+                default -> {
+                    return; // FINISHED or NOT_HANDSHAKING
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the engine over whatever encrypted bytes are buffered, growing buffers if the engine wants bigger ones.
+     */
+    private SSLEngineResult unwrap() throws SSLException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW -> appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true);
+                case BUFFER_UNDERFLOW -> {
+                    if (netIn.remaining() == 0) {
+                        // full buffer but still not a whole record, so the packet size must have grown
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+                    }
+                    return result;
+                }
+                default -> {
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encrypts {@code source} (possibly empty, for handshake messages) and writes it all to the socket.
+     */
+    private HandshakeStatus wrap(ByteBuffer source) throws IOException {
+        while (true) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(source, netOut);
+            netOut.flip();
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW -> netOut = grow(netOut, engine.getSession().getPacketBufferSize(), false);
+                case CLOSED -> {
+                    writeToChannel(); // close_notify
+                    if (source.hasRemaining()) throw new SSLException("TLS connection already closed");
+                    return result.getHandshakeStatus();
+                }
+                default -> {
+                    writeToChannel();
+                    return result.getHandshakeStatus();
+                }
+            }
+        }
+    }
+
+    /**
+     * Swaps a buffer for a bigger one, keeping its contents.
+     *
+     * @param readMode whether the buffer is currently in read mode
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int minimumSize, boolean readMode) {
+        ByteBuffer bigger = buffers.acquire(Math.max(minimumSize, buffer.capacity() * 2));
+        if (!readMode) buffer.flip();
+        bigger.put(buffer);
+        if (readMode) bigger.flip();
+        buffers.release(buffer);
+        return bigger;
+    }
+
+    private boolean readFromChannel() throws IOException {
+        return channel.read(netIn) >= 0;
+    }
+
+    private void writeToChannel() throws IOException {
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+    }
+
+    /**
+     * Decrypts until there's application data to hand out.
+     *
+     * @return false at end of stream
+     */
+    private boolean fill() throws IOException {
+        while (!appIn.hasRemaining()) {
+            if (closed) return false;
+
+            SSLEngineResult result = unwrap();
+            switch (result.getStatus()) {
+                case CLOSED -> {
+                    return false;
+                }
+                case BUFFER_UNDERFLOW -> {
+                    if (!readFromChannel()) return false;
+                }
+                default -> {
+                    // e.g. TLS 1.3 key updates or session tickets arriving after the handshake
+                    HandshakeStatus status = result.getHandshakeStatus();
+                    if (status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED) {
+                        continueHandshake(status);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (!destination.hasRemaining()) return 0;
+        if (!fill()) return -1;
+        int count = Math.min(destination.remaining(), appIn.remaining());
+        destination.put(destination.position(), appIn, appIn.position(), count);
+        destination.position(destination.position() + count);
+        appIn.position(appIn.position() + count);
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int length = source.remaining();
+        while (source.hasRemaining()) {
+            HandshakeStatus status = wrap(source);
+            if (status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED) {
+                continueHandshake(status);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify, closes the channel, and hands the buffers back to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            engine.closeOutbound();
+            if (channel.isOpen()) {
+                wrap(EMPTY);
+            }
+        } catch (IOException ignored) {
+            // peer has probably gone already, nothing more to say to them
+        } finally {
+            channel.close();
+            buffers.release(netIn);
+            buffers.release(netOut);
+            buffers.release(appIn);
+            netIn = netOut = appIn = null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package http;
+
+import logging.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Address ranges of reverse proxies in front of the server, whose word is taken for who the client really is. Behind
+ * a proxy every connection comes from the proxy, so anything keyed on the peer address (like a {@link RateLimiter})
+ * would lump all clients together; for connections from a trusted proxy the client's address is taken from the
+ * {@code Fly-Client-IP} header, or failing that the last hop of {@code X-Forwarded-For}, which is the one the proxy
+ * added itself.
+ * <p>
+ * Headers from anyone else are ignored, as clients can put whatever they like in them.
+ */
+public final class TrustedProxies {
+    public static final TrustedProxies NONE = new TrustedProxies(List.of());
+
+    private record Range(byte[] network, int prefixLength) {
+        boolean contains(byte[] address) {
+            if (address.length != network.length) {
+                return false;
+            }
+            int wholeBytes = prefixLength / 8;
+            for (int i = 0; i < wholeBytes; i++) {
+                if (address[i] != network[i]) {
+                    return false;
+                }
+            }
+            int remainingBits = prefixLength % 8;
+            if (remainingBits == 0) {
+                return true;
+            }
+            int mask = 0xff << (8 - remainingBits) & 0xff;
+            return (address[wholeBytes] & mask) == (network[wholeBytes] & mask);
+        }
+    }
+
+    private final List<Range> ranges;
+
+    private TrustedProxies(List<Range> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param spec comma separated addresses and CIDR ranges, e.g. {@code 10.0.0.0/8, fc00::/7}. Entries that don't
+     *             parse are skipped with a warning.
+     */
+    public static TrustedProxies parse(String spec) {
+        List<Range> ranges = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.strip();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            int slash = entry.indexOf('/');
+            InetAddress network = literal(slash == -1 ? entry : entry.substring(0, slash));
+            if (network == null) {
+                Log.warn("Ignoring trusted proxy that isn't an IP address or CIDR range: %s", entry);
+                continue;
+            }
+            int bits = network.getAddress().length * 8;
+            int prefixLength = bits;
+            if (slash != -1) {
+                try {
+                    prefixLength = Integer.parseInt(entry.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    prefixLength = -1;
+                }
+                if (prefixLength < 0 || prefixLength > bits) {
+                    Log.warn("Ignoring trusted proxy with an invalid prefix length: %s", entry);
+                    continue;
+                }
+            }
+            ranges.add(new Range(network.getAddress(), prefixLength));
+        }
+        return ranges.isEmpty() ? NONE : new TrustedProxies(List.copyOf(ranges));
+    }
+
+    /**
+     * Parses an IP address without ever falling back to a DNS lookup, which {@link InetAddress#getByName} would do for
+     * anything that doesn't look like one.
+     *
+     * @return the address, or null if it isn't one
+     */
+    private static InetAddress literal(String address) {
+        if (address.isEmpty() || address.length() > 45) {
+            return null;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            boolean hex = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+            if (!hex && c != '.' && c != ':') {
+                return null;
+            }
+        }
+        // anything with a colon is IPv6, and InetAddress only takes those in square brackets if at all
+        if (address.indexOf(':') == -1 && address.chars().filter(c -> c == '.').count() != 3) {
+            return null; // "10" or "1.2" would otherwise get read as old-fashioned shorthand
+        }
+        try {
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    public boolean contains(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        for (Range range : ranges) {
+            if (range.contains(bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the client's IP address: as forwarded by the proxy if the peer is a trusted one and said, otherwise the
+     * peer's own
+     */
+    String clientAddress(InetAddress peer, Map<String, String> headers) {
+        if (ranges.isEmpty() || !contains(peer)) {
+            return peer.getHostAddress();
+        }
+
+        InetAddress forwarded = literal(headerValue(headers.get("Fly-Client-IP")));
+        if (forwarded == null) {
+            String forwardedFor = headers.get("X-Forwarded-For");
+            if (forwardedFor != null) {
+                forwarded = literal(headerValue(forwardedFor.substring(forwardedFor.lastIndexOf(',') + 1)));
+            }
+        }
+        return forwarded == null ? peer.getHostAddress() : forwarded.getHostAddress();
+    }
+
+    private static String headerValue(String value) {
+        return value == null ? "" : value.strip();
+    }
+}
@@ -0,0 +1,230 @@
+package logging;
+
+import http.Exchange;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Compact binary access log, written through a memory-mapped file that is rotated once full.
+ * <p>
+ * Every file is a sequence of fixed-width {@value #RECORD_SIZE}-byte little-endian slots:
+ * <pre>
+ * header (1 slot):     magic "SNAL", u16 version, u16 record size, i64 creation epoch millis, zero padding
+ * route  (2 slots):    u8 type = 2, u8 template length, u16 route id, up to 60 bytes UTF-8 template
+ * access (1 slot):     u8 type = 1, u8 method, u16 status, u16 route id, u16 reserved,
+ *                      i64 epoch millis, i32 bytes in, i32 bytes out, i32 queue micros, i32 handler micros
+ * </pre>
+ * Route templates are written to a file the first time they're seen in it, so each access record only needs a 2-byte
+ * ID. Unused space at the end of a file is left zeroed (type 0), which readers treat as end of file.
+ * See {@link AccessLogReader} for the offline reader.
+ */
+public class AccessLog implements Consumer<Exchange> {
+    static final byte[] MAGIC = "SNAL".getBytes(StandardCharsets.US_ASCII);
+    static final short VERSION = 1;
+    static final int RECORD_SIZE = 32;
+    static final int ROUTE_SLOTS = 2;
+    static final int MAX_TEMPLATE_BYTES = ROUTE_SLOTS * RECORD_SIZE - 4;
+    static final byte TYPE_ACCESS = 1;
+    static final byte TYPE_ROUTE = 2;
+
+    // methods are stored as a single byte, anything unusual is lumped together as 0
+    static final String[] METHODS = {"OTHER", "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH"};
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /**
+     * One mapped file. Writers claim slots with a CAS on the cursor, then fill them in with absolute puts, so
+     * concurrent writers never touch the same bytes.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final int slots;
+        private final AtomicLong cursor = new AtomicLong(1); // slot 0 is the header
+        private final Map<String, Short> routeIds = new ConcurrentHashMap<>();
+        private final AtomicInteger nextRouteId = new AtomicInteger();
+
+        private Segment(Path path, int sizeBytes) throws IOException {
+            this.path = path;
+            this.slots = sizeBytes / RECORD_SIZE;
+            try (FileChannel channel = FileChannel.open(
+                path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE
+            )) {
+                // the mapping stays valid after the channel is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * RECORD_SIZE);
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.put(0, MAGIC);
+            buffer.putShort(4, VERSION);
+            buffer.putShort(6, (short) RECORD_SIZE);
+            buffer.putLong(8, System.currentTimeMillis());
+        }
+
+        /**
+         * @return the byte offset of the first claimed slot, or -1 if the segment is full
+         */
+        private int claim(int count) {
+            long slot = cursor.getAndAdd(count);
+            if (slot + count > slots) {
+                return -1;
+            }
+            return (int) slot * RECORD_SIZE;
+        }
+
+        /**
+         * @return the route's ID within this segment, or -1 if the segment filled up while writing it
+         */
+        private int routeId(String template) {
+            Short id = routeIds.get(template);
+            if (id != null) {
+                return id;
+            }
+
+            synchronized (routeIds) {
+                id = routeIds.get(template);
+                if (id != null) {
+                    return id;
+                }
+
+                int offset = claim(ROUTE_SLOTS);
+                if (offset < 0) {
+                    return -1;
+                }
+
+                byte[] bytes = template.getBytes(StandardCharsets.UTF_8);
+                int length = Math.min(bytes.length, MAX_TEMPLATE_BYTES);
+                short newId = (short) nextRouteId.getAndIncrement();
+                buffer.put(offset + 1, (byte) length);
+                buffer.putShort(offset + 2, newId);
+                buffer.put(offset + 4, bytes, 0, length);
+                buffer.put(offset, TYPE_ROUTE); // type goes in last so a half-written record reads as empty
+
+                routeIds.put(template, newId);
+                return newId;
+            }
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final AtomicInteger sequence = new AtomicInteger();
+    private volatile Segment current;
+
+    /**
+     * @param directory    where log files are written, created if missing
+     * @param segmentBytes size at which a file is rotated
+     * @param maxSegments  number of files to keep, oldest are deleted first
+     */
+    public AccessLog(Path directory, int segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(segmentBytes, 64 * RECORD_SIZE);
+        this.maxSegments = Math.max(maxSegments, 1);
+        Files.createDirectories(directory);
+        this.current = newSegment();
+        // every start opens a fresh file, so earlier runs' files count towards the limit too
+        deleteOldSegments();
+    }
+
+    static int methodCode(String method) {
+        for (int i = 1; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) return i;
+        }
+        return 0;
+    }
+
+    private static int clampToInt(long value) {
+        return (int) Math.min(Math.max(value, 0), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void accept(Exchange exchange) {
+        while (true) {
+            Segment segment = current;
+
+            int routeId = segment.routeId(exchange.route());
+            int offset = routeId < 0 ? -1 : segment.claim(1);
+            if (offset < 0) {
+                if (!rotate(segment)) {
+                    return; // nowhere to write it
+                }
+                continue;
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.put(offset + 1, (byte) methodCode(exchange.method()));
+            buffer.putShort(offset + 2, (short) exchange.statusCode());
+            buffer.putShort(offset + 4, (short) routeId);
+            buffer.putLong(offset + 8, exchange.startEpochMillis());
+            buffer.putInt(offset + 16, clampToInt(exchange.bytesIn()));
+            buffer.putInt(offset + 20, clampToInt(exchange.bytesOut()));
+            buffer.putInt(offset + 24, clampToInt(TimeUnit.NANOSECONDS.toMicros(exchange.queueNanos())));
+            buffer.putInt(offset + 28, clampToInt(TimeUnit.NANOSECONDS.toMicros(exchange.handlerNanos())));
+            buffer.put(offset, TYPE_ACCESS);
+            return;
+        }
+    }
+
+    /**
+     * @return false if a fresh segment couldn't be opened
+     */
+    private synchronized boolean rotate(Segment full) {
+        if (current != full) {
+            return true; // somebody else already rotated
+        }
+
+        try {
+            current = newSegment();
+        } catch (IOException e) {
+            // keep the old segment, records will be lost until a later rotation succeeds
+            Log.error("Failed to rotate access log: %s: %s", e.getClass().getName(), e.getMessage());
+            return false;
+        }
+        full.buffer.force();
+        deleteOldSegments();
+        return true;
+    }
+
+    private Segment newSegment() throws IOException {
+        String name = String.format(
+            "access-%s-%04d.bin", LocalDateTime.now().format(FILE_TIMESTAMP), sequence.getAndIncrement()
+        );
+        Path path = directory.resolve(name);
+        Log.info("Access log now writing to %s", path);
+        return new Segment(path, segmentBytes);
+    }
+
+    private void deleteOldSegments() {
+        try (Stream<Path> files = Files.list(directory)) {
+            // file names sort chronologically
+            Path[] segments = files
+                .filter(path -> path.getFileName().toString().matches("access-.*\\.bin"))
+                .sorted()
+                .toArray(Path[]::new);
+            for (int i = 0; i < segments.length - maxSegments; i++) {
+                if (!segments[i].equals(current.path)) {
+                    Files.deleteIfExists(segments[i]);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to clean up old access logs: %s: %s", e.getClass().getName(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package logging;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Offline reader for {@link AccessLog} files.
+ * <p>
+ * Usage: {@code java -cp out logging.AccessLogReader [--text | --csv | --stats] <file or directory>...}
+ * <ul>
+ *     <li>{@code --text} (default) prints one human-readable line per request</li>
+ *     <li>{@code --csv} prints one CSV row per request</li>
+ *     <li>{@code --stats} prints latency percentiles and byte counts per route</li>
+ * </ul>
+ */
+public class AccessLogReader {
+    public record Entry(
+        long epochMillis, String method, String route, int statusCode,
+        int bytesIn, int bytesOut, int queueMicros, int handlerMicros
+    ) {}
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+
+    public static List<Entry> read(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] magic = new byte[AccessLog.MAGIC.length];
+        if (buffer.remaining() < AccessLog.RECORD_SIZE) {
+            throw new IOException("Not an access log: " + file);
+        }
+        buffer.get(0, magic);
+        if (!Arrays.equals(magic, AccessLog.MAGIC)) {
+            throw new IOException("Not an access log: " + file);
+        }
+        if (buffer.getShort(4) != AccessLog.VERSION || buffer.getShort(6) != AccessLog.RECORD_SIZE) {
+            throw new IOException("Unsupported access log version: " + file);
+        }
+
+        Map<Short, String> routes = new HashMap<>();
+        List<Entry> entries = new ArrayList<>();
+
+        for (int offset = AccessLog.RECORD_SIZE; offset + AccessLog.RECORD_SIZE <= buffer.limit(); ) {
+            byte type = buffer.get(offset);
+            if (type == AccessLog.TYPE_ROUTE) {
+                byte[] template = new byte[buffer.get(offset + 1) & 0xFF];
+                buffer.get(offset + 4, template);
+                routes.put(buffer.getShort(offset + 2), new String(template, StandardCharsets.UTF_8));
+                offset += AccessLog.ROUTE_SLOTS * AccessLog.RECORD_SIZE;
+            } else if (type == AccessLog.TYPE_ACCESS) {
+                int methodCode = buffer.get(offset + 1) & 0xFF;
+                entries.add(new Entry(
+                    buffer.getLong(offset + 8),
+                    methodCode < AccessLog.METHODS.length ? AccessLog.METHODS[methodCode] : AccessLog.METHODS[0],
+                    routes.getOrDefault(buffer.getShort(offset + 4), "?"),
+                    buffer.getShort(offset + 2),
+                    buffer.getInt(offset + 16),
+                    buffer.getInt(offset + 20),
+                    buffer.getInt(offset + 24),
+                    buffer.getInt(offset + 28)
+                ));
+                offset += AccessLog.RECORD_SIZE;
+            } else {
+                // zeroed slot = end of written data (or a record torn by a crash, which we can't trust either)
+                break;
+            }
+        }
+
+        return entries;
+    }
+
+    private static List<Path> expand(String[] arguments) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String argument : arguments) {
+            Path path = Paths.get(argument);
+            if (Files.isDirectory(path)) {
+                try (var listing = Files.list(path)) {
+                    listing.filter(file -> file.getFileName().toString().endsWith(".bin")).sorted().forEach(files::add);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    private static double percentile(int[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static void printStats(List<Entry> entries, PrintStream out) {
+        Map<String, List<Entry>> byRoute = new TreeMap<>();
+        for (Entry entry : entries) {
+            byRoute.computeIfAbsent(entry.method() + " " + entry.route(), key -> new ArrayList<>()).add(entry);
+        }
+
+        out.printf("%-44s %8s %6s %10s %10s", "route", "count", "errors", "bytes in", "bytes out");
+        for (String label : PERCENTILE_LABELS) out.printf(" %11s", "handler " + label);
+        out.printf(" %11s %11s%n", "handler max", "queue p99");
+
+        for (Map.Entry<String, List<Entry>> route : byRoute.entrySet()) {
+            List<Entry> routeEntries = route.getValue();
+            int[] handler = routeEntries.stream().mapToInt(Entry::handlerMicros).sorted().toArray();
+            int[] queue = routeEntries.stream().mapToInt(Entry::queueMicros).sorted().toArray();
+            long errors = routeEntries.stream().filter(entry -> entry.statusCode() >= 500).count();
+            long bytesIn = routeEntries.stream().mapToLong(Entry::bytesIn).sum();
+            long bytesOut = routeEntries.stream().mapToLong(Entry::bytesOut).sum();
+
+            out.printf("%-44s %8d %6d %10d %10d", route.getKey(), routeEntries.size(), errors, bytesIn, bytesOut);
+            for (double p : PERCENTILES) out.printf(" %9.0fus", percentile(handler, p));
+            out.printf(" %9dus %9.0fus%n", handler[handler.length - 1], percentile(queue, 99));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String mode = "--text";
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) mode = arg;
+            else paths.add(arg);
+        }
+
+        if (paths.isEmpty() || !List.of("--text", "--csv", "--stats").contains(mode)) {
+            System.err.println("Usage: java logging.AccessLogReader [--text | --csv | --stats] <file or directory>...");
+            System.exit(2);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (Path file : expand(paths.toArray(String[]::new))) {
+            entries.addAll(read(file));
+        }
+
+        PrintStream out = System.out;
+        switch (mode) {
+            case "--csv" -> {
+                out.println("timestamp,method,route,status,bytes_in,bytes_out,queue_us,handler_us");
+                for (Entry e : entries) {
+                    out.printf(
+                        "%s,%s,\"%s\",%d,%d,%d,%d,%d%n",
+                        Instant.ofEpochMilli(e.epochMillis()), e.method(), e.route().replace("\"", "\"\""),
+                        e.statusCode(), e.bytesIn(), e.bytesOut(), e.queueMicros(), e.handlerMicros()
+                    );
+                }
+            }
+            case "--stats" -> printStats(entries, out);
+            default -> {
+                for (Entry e : entries) {
+                    out.printf(
+                        "%s %-7s %-36s %d in=%dB out=%dB queue=%dus handler=%dus%n",
+                        Instant.ofEpochMilli(e.epochMillis()), e.method(), e.route(), e.statusCode(),
+                        e.bytesIn(), e.bytesOut(), e.queueMicros(), e.handlerMicros()
+                    );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package logging;
+
+public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR;
+
+    public static Level parse(String name, Level defaultLevel) {
+        try {
+            return Level.valueOf(name.strip().toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return defaultLevel;
+        }
+    }
+}
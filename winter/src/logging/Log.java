@@ -0,0 +1,180 @@
+package logging;
+
+import utils.ANSI;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous console logger.
+ * <p>
+ * Callers only ever format their message and drop it into a lock-free ring buffer, so logging never blocks a request
+ * thread on the console. A single background writer drains the buffer in batches and flushes once per batch.
+ * If the buffer is full the record is dropped and counted instead of waiting for space.
+ */
+public final class Log {
+    private static final int BUFFER_CAPACITY = 16384;
+    private static final int MAX_BATCH = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private record Record(Level level, String message) {}
+
+    private static final RingBuffer<Record> buffer = new RingBuffer<>(BUFFER_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder sampledOut = new LongAdder();
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int sampleRate = 10;
+
+    // bypass System.out/err so that the writer doesn't contend on their PrintStream locks
+    private static final OutputStream stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+    private static final OutputStream stderr = new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 14);
+    private static long reportedDrops = 0;
+
+    static {
+        Thread writer = new Thread(Log::drainForever, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // make sure whatever is still buffered makes it out when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flushRemaining, "log-flush"));
+    }
+
+    private Log() {}
+
+    /**
+     * @param minimumLevel records below this level are discarded before being formatted
+     * @param sampleRate   once the buffer is over half full, only 1 in this many records below {@link Level#WARN} are
+     *                     kept (1 disables sampling)
+     */
+    public static void configure(Level minimumLevel, int sampleRate) {
+        Log.level = minimumLevel;
+        Log.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * Decides whether a record at the given level should be logged right now, taking the level threshold and load
+     * sampling into account. Check this before building an expensive message.
+     */
+    public static boolean enabled(Level level) {
+        if (level.compareTo(Log.level) < 0) {
+            return false;
+        }
+
+        // under load, sample the chatty levels rather than filling the buffer and dropping everything
+        int rate = sampleRate;
+        if (rate > 1 && level.compareTo(Level.WARN) < 0 && buffer.size() > buffer.capacity() / 2) {
+            if (ThreadLocalRandom.current().nextInt(rate) != 0) {
+                sampledOut.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enqueues an already-formatted message without any level or sampling checks.
+     */
+    public static void log(Level level, String message) {
+        if (!buffer.offer(new Record(level, message))) {
+            dropped.increment();
+        }
+    }
+
+    public static void debug(String format, Object... args) {
+        if (enabled(Level.DEBUG)) log(Level.DEBUG, String.format(format, args));
+    }
+
+    public static void info(String format, Object... args) {
+        if (enabled(Level.INFO)) log(Level.INFO, String.format(format, args));
+    }
+
+    public static void warn(String format, Object... args) {
+        if (enabled(Level.WARN)) log(Level.WARN, String.format(format, args));
+    }
+
+    public static void error(String format, Object... args) {
+        if (enabled(Level.ERROR)) log(Level.ERROR, String.format(format, args));
+    }
+
+    /**
+     * Number of records discarded because the buffer was full.
+     */
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Number of records discarded by load sampling.
+     */
+    public static long sampledOutCount() {
+        return sampledOut.sum();
+    }
+
+    private static void drainForever() {
+        while (true) {
+            if (drainOnce() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes out one batch and flushes it. Synchronised because the ring buffer only supports a single consumer, and
+     * the shutdown hook drains alongside the writer thread.
+     */
+    private static synchronized int drainOnce() {
+        int written = 0;
+        Record record;
+        while (written < MAX_BATCH && (record = buffer.poll()) != null) {
+            write(record);
+            written++;
+        }
+
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            write(new Record(Level.WARN, String.format(
+                ANSI.RED + "[log] %d records dropped (buffer full)" + ANSI.RESET, drops - reportedDrops
+            )));
+            reportedDrops = drops;
+            written++;
+        }
+
+        if (written > 0) {
+            flush();
+        }
+        return written;
+    }
+
+    private static void flushRemaining() {
+        while (drainOnce() > 0) {
+            // keep going until empty
+        }
+    }
+
+    private static void write(Record record) {
+        OutputStream out = record.level().compareTo(Level.WARN) >= 0 ? stderr : stdout;
+        try {
+            out.write(record.message().getBytes(StandardCharsets.UTF_8));
+            out.write(NEWLINE);
+        } catch (IOException ignored) {
+            // nowhere left to report it
+        }
+    }
+
+    private static void flush() {
+        try {
+            stdout.flush();
+            stderr.flush();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,88 @@
+package logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer, single-consumer ring buffer.
+ * <p>
+ * Each slot carries a sequence number, so producers claim a slot with a single CAS on the tail and publish it by
+ * bumping the slot's sequence; the consumer only ever touches the head. Based on Dmitry Vyukov's bounded queue:
+ * <a href="https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue">1024cores</a>
+ */
+class RingBuffer<T> {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    RingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring buffer capacity must be a power of two: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.slots = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Approximate number of items waiting to be consumed.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Adds an item without ever blocking.
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(T item) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                // slot is free, try to claim it
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, item);
+                    sequences.set(index, position + 1); // publish
+                    return true;
+                }
+            } else if (difference < 0) {
+                // consumer hasn't caught up with this slot yet, so we're full
+                return false;
+            }
+            // otherwise another producer beat us to it, try again
+        }
+    }
+
+    /**
+     * Removes the next item. Must only be called from the single consumer thread.
+     *
+     * @return the item, or null if nothing has been published yet
+     */
+    T poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        T item = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.set(index, position + mask + 1); // hand the slot back to producers for the next lap
+        head = position + 1;
+        return item;
+    }
+}
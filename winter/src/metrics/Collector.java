@@ -0,0 +1,9 @@
+package metrics;
+
+/**
+ * Something that contributes samples to a {@link MetricsRegistry} scrape.
+ */
+@FunctionalInterface
+public interface Collector {
+    void collect(PrometheusWriter writer);
+}
@@ -0,0 +1,160 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of non-negative long values (typically nanoseconds).
+ * <p>
+ * Values below 2^{@value #SUB_BUCKET_BITS} get a bucket each; above that, every power of two is split into
+ * 2^{@value #SUB_BUCKET_BITS} equal sub-buckets, so the relative error of any reported value stays under ~3%.
+ * Recording is a couple of bit operations and an atomic increment, with no allocation and no locks.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // enough for values up to 2^42 ns, about 73 minutes - anything bigger lands in the last bucket
+    private static final int MAX_EXPONENT = 42;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Largest value that maps to the given bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(bucketIndex(value));
+        sum.add(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Counts recorded values at or below each of the given bounds, rounded to bucket granularity, reading the live
+     * counters directly rather than taking a snapshot.
+     *
+     * @param bounds ascending upper bounds
+     * @param into   receives the cumulative count for each bound
+     * @return the total count
+     */
+    public long cumulativeCounts(long[] bounds, long[] into) {
+        long total = 0;
+        int bound = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long upper = bucketUpperBound(i);
+            while (bound < bounds.length && upper > bounds[bound]) {
+                into[bound++] = total;
+            }
+            total += counts.get(i);
+        }
+        while (bound < bounds.length) {
+            into[bound++] = total;
+        }
+        return total;
+    }
+
+    /**
+     * A point-in-time copy of the histogram, for computing several statistics off one consistent-ish read.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sum() {
+            return sum;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return an upper bound for the value at the given percentile, or 0 if nothing was recorded
+         */
+        public long valueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Number of recorded values no greater than the given value, rounded to bucket granularity.
+         */
+        public long countAtOrBelow(long value) {
+            int last = bucketIndex(value);
+            long total = 0;
+            for (int i = 0; i <= last; i++) {
+                total += counts[i];
+            }
+            return total;
+        }
+    }
+}
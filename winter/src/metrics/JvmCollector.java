@@ -0,0 +1,45 @@
+package metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * JVM memory, garbage collection and thread metrics. The MX beans are looked up once, up front.
+ */
+public class JvmCollector implements Collector {
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @Override
+    public void collect(PrometheusWriter writer) {
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+
+        writer.family("jvm_memory_used_bytes", "gauge", "Used JVM memory.")
+            .sample("jvm_memory_used_bytes", heap.getUsed(), "area", "heap")
+            .sample("jvm_memory_used_bytes", nonHeap.getUsed(), "area", "nonheap");
+        writer.family("jvm_memory_committed_bytes", "gauge", "Committed JVM memory.")
+            .sample("jvm_memory_committed_bytes", heap.getCommitted(), "area", "heap")
+            .sample("jvm_memory_committed_bytes", nonHeap.getCommitted(), "area", "nonheap");
+        writer.family("jvm_memory_max_bytes", "gauge", "Maximum JVM memory, -1 if undefined.")
+            .sample("jvm_memory_max_bytes", heap.getMax(), "area", "heap")
+            .sample("jvm_memory_max_bytes", nonHeap.getMax(), "area", "nonheap");
+
+        writer.family("jvm_gc_collections_total", "counter", "Garbage collections, by collector.");
+        for (GarbageCollectorMXBean gc : collectors) {
+            writer.sample("jvm_gc_collections_total", gc.getCollectionCount(), "gc", gc.getName());
+        }
+        writer.family("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection, by collector.");
+        for (GarbageCollectorMXBean gc : collectors) {
+            writer.sample("jvm_gc_collection_seconds_total", gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+        }
+
+        writer.family("jvm_threads_live", "gauge", "Live platform threads.")
+            .sample("jvm_threads_live", threads.getThreadCount());
+    }
+}
@@ -0,0 +1,26 @@
+package metrics;
+
+/**
+ * Request methods as metric keys. The method is whatever word the client sent, so anything that isn't a standard one
+ * is counted as {@value #OTHER}; otherwise a client making up a new method per request could grow the metrics (and
+ * the heap) without limit.
+ */
+final class Methods {
+    static final String OTHER = "OTHER";
+
+    private static final String[] KNOWN = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH"};
+
+    private Methods() {}
+
+    /**
+     * @return one of a fixed set of strings, so it's safe to key on
+     */
+    static String normalise(String method) {
+        for (String known : KNOWN) {
+            if (known.equals(method)) {
+                return known;
+            }
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,28 @@
+package metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the collectors behind the {@code /metrics} endpoint. Collectors are registered once at startup, and every
+ * scrape renders into the same reused buffer, so a scrape costs little more than reading the counters.
+ */
+public class MetricsRegistry {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+    private final StringBuilder buffer = new StringBuilder(16 * 1024);
+    private final PrometheusWriter writer = new PrometheusWriter(buffer);
+
+    public void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    public synchronized String scrape() {
+        buffer.setLength(0);
+        for (Collector collector : collectors) {
+            collector.collect(writer);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package metrics;
+
+import java.math.BigDecimal;
+
+/**
+ * Appends metrics in the Prometheus text exposition format straight into a caller-supplied buffer.
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/#text-based-format">Format reference</a>
+ */
+public final class PrometheusWriter {
+    private final StringBuilder out;
+
+    PrometheusWriter(StringBuilder out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the HELP and TYPE lines for a metric family. Call once, before that family's samples.
+     */
+    public PrometheusWriter family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels alternating label names and values
+     */
+    public PrometheusWriter sample(String name, long value, String... labels) {
+        appendName(name, labels);
+        out.append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels alternating label names and values
+     */
+    public PrometheusWriter sample(String name, double value, String... labels) {
+        appendName(name, labels);
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+        return this;
+    }
+
+    /**
+     * Formats a histogram bucket bound for an {@code le} label as a plain decimal, e.g. {@code 0.0001} and {@code 1},
+     * like the official client libraries do, where {@link Double#toString} would give {@code 1.0E-4} and {@code 1.0}.
+     */
+    public static String bucketBound(double bound) {
+        return BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString();
+    }
+
+    private void appendName(String name, String[] labels) {
+        out.append(name);
+        if (labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) out.append(',');
+                out.append(labels[i]).append("=\"");
+                appendEscaped(labels[i + 1]);
+                out.append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+    }
+}
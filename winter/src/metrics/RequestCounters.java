@@ -0,0 +1,82 @@
+package metrics;
+
+import http.Exchange;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Request, status code and byte counters per route. Fed by {@link http.HTTPServer#observe}.
+ */
+public class RequestCounters implements Consumer<Exchange>, Collector {
+    private static final int MAX_STATUS = 600;
+
+    private static final class RouteCounters {
+        // indexed by status code so that counting never boxes an Integer
+        private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS);
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+
+        private void record(Exchange exchange) {
+            int status = Math.floorMod(exchange.statusCode(), MAX_STATUS);
+            LongAdder counter = statuses.get(status);
+            if (counter == null) {
+                statuses.compareAndSet(status, null, new LongAdder());
+                counter = statuses.get(status);
+            }
+            counter.increment();
+            bytesIn.add(exchange.bytesIn());
+            bytesOut.add(exchange.bytesOut());
+        }
+    }
+
+    // method -> route template -> counters, both from fixed sets as they end up as labels
+    private final Map<String, Map<String, RouteCounters>> routes = new ConcurrentHashMap<>();
+
+    @Override
+    public void accept(Exchange exchange) {
+        routes
+            .computeIfAbsent(Methods.normalise(exchange.method()), method -> new ConcurrentHashMap<>())
+            .computeIfAbsent(exchange.route(), route -> new RouteCounters())
+            .record(exchange);
+    }
+
+    @Override
+    public void collect(PrometheusWriter writer) {
+        writer.family("snowmon_http_requests_total", "counter", "HTTP requests served, by route and status code.");
+        for (Map.Entry<String, Map<String, RouteCounters>> method : routes.entrySet()) {
+            for (Map.Entry<String, RouteCounters> route : method.getValue().entrySet()) {
+                AtomicReferenceArray<LongAdder> statuses = route.getValue().statuses;
+                for (int status = 0; status < MAX_STATUS; status++) {
+                    LongAdder counter = statuses.get(status);
+                    if (counter != null) {
+                        writer.sample(
+                            "snowmon_http_requests_total", counter.sum(),
+                            "method", method.getKey(), "route", route.getKey(), "status", Integer.toString(status)
+                        );
+                    }
+                }
+            }
+        }
+
+        writer.family("snowmon_http_request_bytes_total", "counter", "Bytes received in HTTP requests, by route.");
+        writeBytes(writer, "snowmon_http_request_bytes_total", true);
+        writer.family("snowmon_http_response_bytes_total", "counter", "Bytes sent in HTTP responses, by route.");
+        writeBytes(writer, "snowmon_http_response_bytes_total", false);
+    }
+
+    private void writeBytes(PrometheusWriter writer, String name, boolean in) {
+        for (Map.Entry<String, Map<String, RouteCounters>> method : routes.entrySet()) {
+            for (Map.Entry<String, RouteCounters> route : method.getValue().entrySet()) {
+                RouteCounters counters = route.getValue();
+                writer.sample(
+                    name, (in ? counters.bytesIn : counters.bytesOut).sum(),
+                    "method", method.getKey(), "route", route.getKey()
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package metrics;
+
+import http.Exchange;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Per-route latency histograms, broken down by request phase. Fed by {@link http.HTTPServer#observe}.
+ */
+public class RouteLatencies implements Consumer<Exchange>, Collector {
+    public enum Phase {
+        QUEUE, PARSE, HANDLER, WRITE, TOTAL;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    public static final class PhaseHistograms {
+        private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+        private PhaseHistograms() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        public Histogram get(Phase phase) {
+            return histograms[phase.ordinal()];
+        }
+    }
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+
+    // Prometheus histogram bucket bounds, from 100us to 10s
+    private static final double[] BUCKET_SECONDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+    private static final String[] BUCKET_LABELS = new String[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+            BUCKET_LABELS[i] = PrometheusWriter.bucketBound(BUCKET_SECONDS[i]);
+        }
+    }
+
+    // reused between scrapes, which the registry serialises
+    private final long[] bucketCounts = new long[BUCKET_SECONDS.length];
+
+    // method -> route template -> histograms, nested so that lookups don't need to build a composite key. at around
+    // 50KB a set, methods are limited to the standard ones and routes to the server's route templates
+    private final Map<String, Map<String, PhaseHistograms>> routes = new ConcurrentHashMap<>();
+
+    @Override
+    public void accept(Exchange exchange) {
+        PhaseHistograms histograms = routes
+            .computeIfAbsent(Methods.normalise(exchange.method()), method -> new ConcurrentHashMap<>())
+            .computeIfAbsent(exchange.route(), route -> new PhaseHistograms());
+
+        histograms.get(Phase.QUEUE).record(exchange.queueNanos());
+        histograms.get(Phase.PARSE).record(exchange.parseNanos());
+        histograms.get(Phase.HANDLER).record(exchange.handlerNanos());
+        histograms.get(Phase.WRITE).record(exchange.writeNanos());
+        histograms.get(Phase.TOTAL).record(exchange.totalNanos());
+    }
+
+    /**
+     * @return a live view of method -> route template -> histograms
+     */
+    public Map<String, Map<String, PhaseHistograms>> routes() {
+        return routes;
+    }
+
+    @Override
+    public void collect(PrometheusWriter writer) {
+        String name = "snowmon_http_request_duration_seconds";
+        writer.family(name, "histogram", "HTTP request latency, by route and phase.");
+
+        for (Map.Entry<String, Map<String, PhaseHistograms>> method : routes.entrySet()) {
+            for (Map.Entry<String, PhaseHistograms> route : method.getValue().entrySet()) {
+                for (Phase phase : Phase.values()) {
+                    Histogram histogram = route.getValue().get(phase);
+                    long count = histogram.cumulativeCounts(BUCKET_NANOS, bucketCounts);
+                    for (int i = 0; i < bucketCounts.length; i++) {
+                        writer.sample(
+                            name + "_bucket", bucketCounts[i], "method", method.getKey(), "route", route.getKey(),
+                            "phase", phase.label(), "le", BUCKET_LABELS[i]
+                        );
+                    }
+                    writer.sample(
+                        name + "_bucket", count, "method", method.getKey(), "route", route.getKey(),
+                        "phase", phase.label(), "le", "+Inf"
+                    );
+                    writer.sample(
+                        name + "_sum", histogram.sum() / (double) TimeUnit.SECONDS.toNanos(1),
+                        "method", method.getKey(), "route", route.getKey(), "phase", phase.label()
+                    );
+                    writer.sample(
+                        name + "_count", count, "method", method.getKey(), "route", route.getKey(),
+                        "phase", phase.label()
+                    );
+                }
+            }
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    public String toJSON() {
+        StringBuilder json = new StringBuilder("{\n    \"unit\": \"microseconds\",\n    \"routes\": [");
+        boolean firstRoute = true;
+
+        for (Map.Entry<String, Map<String, PhaseHistograms>> method : routes.entrySet()) {
+            for (Map.Entry<String, PhaseHistograms> route : method.getValue().entrySet()) {
+                json.append(firstRoute ? "\n" : ",\n");
+                firstRoute = false;
+
+                Histogram.Snapshot total = route.getValue().get(Phase.TOTAL).snapshot();
+                json.append("        {\n")
+                    .append("            \"method\": \"").append(method.getKey()).append("\",\n")
+                    .append("            \"route\": \"").append(route.getKey()).append("\",\n")
+                    .append("            \"count\": ").append(total.count()).append(",\n")
+                    .append("            \"phases\": {");
+
+                Phase[] phases = Phase.values();
+                for (int i = 0; i < phases.length; i++) {
+                    Histogram.Snapshot snapshot = route.getValue().get(phases[i]).snapshot();
+                    json.append(i == 0 ? "\n" : ",\n")
+                        .append("                \"").append(phases[i].label()).append("\": {");
+                    for (int p = 0; p < PERCENTILES.length; p++) {
+                        double micros = micros(snapshot.valueAtPercentile(PERCENTILES[p]));
+                        json.append('"').append(PERCENTILE_LABELS[p]).append("\": ")
+                            .append(String.format(Locale.ROOT, "%.1f", micros))
+                            .append(", ");
+                    }
+                    json.append("\"max\": ")
+                        .append(String.format(Locale.ROOT, "%.1f", micros(snapshot.max()))).append('}');
+                }
+
+                json.append("\n            }\n        }");
+            }
+        }
+
+        return json.append(firstRoute ? "]\n}" : "\n    ]\n}").toString();
+    }
+}
@@ -0,0 +1,172 @@
+package tracing;
+
+import logging.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes spans in batches to a local file in OTLP/JSON, one {@code ExportTraceServiceRequest} per line. That is the
+ * format the OpenTelemetry Collector's {@code otlpjsonfile} receiver picks up.
+ * <a href="https://opentelemetry.io/docs/specs/otlp/#json-protobuf-encoding">OTLP/JSON reference</a>
+ * <p>
+ * Finished spans are offered to a bounded queue, and dropped (and counted) if it is full, so request threads never wait
+ * on the file.
+ */
+public class OtlpFileExporter implements SpanExporter {
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_BATCH = 512;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final BlockingQueue<Span> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final BufferedWriter out;
+    private final String serviceName;
+
+    public OtlpFileExporter(Path path, String serviceName) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        this.out = Files.newBufferedWriter(
+            path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND
+        );
+        this.serviceName = serviceName;
+
+        Thread writer = new Thread(this::exportForever, "trace-exporter");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushRemaining, "trace-flush"));
+    }
+
+    @Override
+    public void export(Span span) {
+        if (!queue.offer(span)) {
+            dropped.increment();
+        }
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    private void exportForever() {
+        List<Span> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                Span first = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                if (batch.size() < MAX_BATCH) {
+                    // give stragglers from the same request a moment to arrive, so batches are worth writing.
+                    // a backlog goes out in full batches with no wait, or the wait would cap the export rate
+                    Thread.sleep(50);
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flushRemaining() {
+        List<Span> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        if (!batch.isEmpty()) {
+            writeBatch(batch);
+        }
+    }
+
+    private synchronized void writeBatch(List<Span> batch) {
+        StringBuilder json = new StringBuilder(256 * batch.size());
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        appendAttribute(json, "service.name", serviceName);
+        json.append("]},\"scopeSpans\":[{\"scope\":{\"name\":");
+        appendString(json, serviceName);
+        json.append("},\"spans\":[");
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) json.append(',');
+            appendSpan(json, batch.get(i));
+        }
+        json.append("]}]}]}");
+
+        try {
+            out.write(json.toString());
+            out.newLine();
+            out.flush();
+        } catch (IOException e) {
+            Log.error("Failed to export %d spans: %s: %s", batch.size(), e.getClass().getName(), e.getMessage());
+        }
+    }
+
+    private static void appendSpan(StringBuilder json, Span span) {
+        json.append("{\"traceId\":\"").append(span.context().traceId())
+            .append("\",\"spanId\":\"").append(span.context().spanId()).append('"');
+        if (span.parentSpanId() != null) {
+            json.append(",\"parentSpanId\":\"").append(span.parentSpanId()).append('"');
+        }
+        json.append(",\"name\":");
+        appendString(json, span.name());
+        json.append(",\"kind\":").append(span.kind().otlpValue)
+            // 64-bit integers are strings in OTLP/JSON
+            .append(",\"startTimeUnixNano\":\"").append(Tracer.toEpochNanos(span.startNanos()))
+            .append("\",\"endTimeUnixNano\":\"").append(Tracer.toEpochNanos(span.endNanos()))
+            .append("\",\"attributes\":[");
+
+        boolean first = true;
+        for (Map.Entry<String, Object> attribute : span.attributes().entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            appendAttribute(json, attribute.getKey(), attribute.getValue());
+        }
+        json.append("],\"status\":{\"code\":").append(span.isError() ? 2 : 0).append("}}");
+    }
+
+    private static void appendAttribute(StringBuilder json, String key, Object value) {
+        json.append("{\"key\":");
+        appendString(json, key);
+        if (value instanceof Long number) {
+            json.append(",\"value\":{\"intValue\":\"").append(number).append("\"}}");
+        } else {
+            json.append(",\"value\":{\"stringValue\":");
+            appendString(json, String.valueOf(value));
+            json.append("}}");
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                    else json.append(c);
+                }
+            }
+        }
+        json.append('"');
+    }
+}
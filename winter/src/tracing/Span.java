@@ -0,0 +1,139 @@
+package tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed operation within a trace. Spans are closed to end them, so they're best used with try-with-resources:
+ * <pre>{@code
+ * try (Span span = Tracer.startSpan("thing")) {
+ *     span.setAttribute("key", "value");
+ *     doTheThing();
+ * }
+ * }</pre>
+ * When a request isn't being traced, {@link #NOOP} is handed out instead and every method does nothing.
+ */
+public class Span implements AutoCloseable {
+    public static final Span NOOP = new Span();
+
+    enum Kind {
+        INTERNAL(1),
+        SERVER(2);
+
+        final int otlpValue;
+
+        Kind(int otlpValue) {
+            this.otlpValue = otlpValue;
+        }
+    }
+
+    private String name;
+    private final SpanContext context;
+    private final String parentSpanId;
+    private final Kind kind;
+    private final long startNanos;
+    private long endNanos = -1;
+    private final Map<String, Object> attributes;
+    private boolean error = false;
+
+    // previously current span on the starting thread, restored on close
+    final Span previous;
+    final boolean current;
+
+    private Span() {
+        this.name = "";
+        this.context = null;
+        this.parentSpanId = null;
+        this.kind = Kind.INTERNAL;
+        this.startNanos = 0;
+        this.attributes = Map.of();
+        this.previous = null;
+        this.current = false;
+    }
+
+    Span(String name, SpanContext context, String parentSpanId, Kind kind, long startNanos, Span previous, boolean current) {
+        this.name = name;
+        this.context = context;
+        this.parentSpanId = parentSpanId;
+        this.kind = kind;
+        this.startNanos = startNanos;
+        this.attributes = new LinkedHashMap<>();
+        this.previous = previous;
+        this.current = current;
+    }
+
+    public boolean isRecording() {
+        return this != NOOP;
+    }
+
+    /**
+     * @return this span's context, for parenting spans on other threads, or null if not recording
+     */
+    public SpanContext context() {
+        return context;
+    }
+
+    public Span setName(String name) {
+        if (isRecording()) this.name = name;
+        return this;
+    }
+
+    public Span setAttribute(String key, String value) {
+        if (isRecording()) attributes.put(key, value);
+        return this;
+    }
+
+    public Span setAttribute(String key, long value) {
+        if (isRecording()) attributes.put(key, value);
+        return this;
+    }
+
+    public Span setError() {
+        this.error = isRecording();
+        return this;
+    }
+
+    /**
+     * Ends the span at the given {@link System#nanoTime()} reading rather than now.
+     */
+    public void end(long endNanos) {
+        if (!isRecording() || this.endNanos >= 0) {
+            return;
+        }
+        this.endNanos = endNanos;
+        Tracer.finish(this);
+    }
+
+    @Override
+    public void close() {
+        end(System.nanoTime());
+    }
+
+    String name() {
+        return name;
+    }
+
+    String parentSpanId() {
+        return parentSpanId;
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    long startNanos() {
+        return startNanos;
+    }
+
+    long endNanos() {
+        return endNanos;
+    }
+
+    Map<String, Object> attributes() {
+        return attributes;
+    }
+
+    boolean isError() {
+        return error;
+    }
+}
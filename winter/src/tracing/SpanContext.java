@@ -0,0 +1,66 @@
+package tracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Identifies a span within a trace, and can be carried across threads to parent spans started elsewhere.
+ */
+public record SpanContext(String traceId, String spanId) {
+    // https://www.w3.org/TR/trace-context/#traceparent-header-field-values
+    private static final Pattern TRACEPARENT_PATTERN = Pattern.compile(
+        "^(?<version>[0-9a-f]{2})-(?<traceId>[0-9a-f]{32})-(?<spanId>[0-9a-f]{16})-(?<flags>[0-9a-f]{2})"
+    );
+    private static final String INVALID_TRACE_ID = "0".repeat(32);
+    private static final String INVALID_SPAN_ID = "0".repeat(16);
+
+    /**
+     * Parsed form of an incoming {@code traceparent} header.
+     *
+     * @param parent  the caller's span
+     * @param sampled whether the caller recorded its span, and wants us to do the same
+     */
+    public record Remote(SpanContext parent, boolean sampled) {}
+
+    /**
+     * @return the parsed header, or null if it is missing or malformed
+     */
+    public static Remote parseTraceparent(String header) {
+        if (header == null) {
+            return null;
+        }
+
+        Matcher matcher = TRACEPARENT_PATTERN.matcher(header.strip());
+        if (!matcher.find() || matcher.group("version").equals("ff")) {
+            return null;
+        }
+
+        String traceId = matcher.group("traceId");
+        String spanId = matcher.group("spanId");
+        if (traceId.equals(INVALID_TRACE_ID) || spanId.equals(INVALID_SPAN_ID)) {
+            return null;
+        }
+
+        boolean sampled = (Integer.parseInt(matcher.group("flags"), 16) & 1) == 1;
+        return new Remote(new SpanContext(traceId, spanId), sampled);
+    }
+
+    static String newTraceId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return hex(random.nextLong() | 1) + hex(random.nextLong());
+    }
+
+    static String newSpanId() {
+        return hex(ThreadLocalRandom.current().nextLong() | 1);
+    }
+
+    private static String hex(long value) {
+        String digits = Long.toHexString(value);
+        return "0".repeat(16 - digits.length()) + digits;
+    }
+
+    public String toTraceparent() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+}
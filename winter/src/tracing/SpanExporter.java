@@ -0,0 +1,8 @@
+package tracing;
+
+/**
+ * Receives finished spans. Implementations must not block the calling thread.
+ */
+public interface SpanExporter {
+    void export(Span span);
+}
@@ -0,0 +1,125 @@
+package tracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entry point for tracing. Each traced HTTP request gets a root server span, and any span started while it is current
+ * on the same thread becomes its child. Work handed to another thread carries a {@link SpanContext} along with it and
+ * parents its spans explicitly.
+ * <p>
+ * Spans are only recorded inside a sampled trace, and only server spans can start a trace, so instrumented code that
+ * runs outside a request (or with tracing disabled) costs a thread-local read.
+ */
+public final class Tracer {
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+
+    // span timings come from nanoTime for precision, converted to wall-clock time at export
+    private static final long EPOCH_OFFSET_NANOS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    private static volatile SpanExporter exporter = null;
+    private static volatile double sampleRatio = 1.0;
+
+    private Tracer() {}
+
+    /**
+     * @param exporter    where finished spans are sent, or null to disable tracing
+     * @param sampleRatio fraction of requests without an incoming {@code traceparent} that start a trace
+     */
+    public static void configure(SpanExporter exporter, double sampleRatio) {
+        Tracer.exporter = exporter;
+        Tracer.sampleRatio = sampleRatio;
+    }
+
+    static long toEpochNanos(long nanoTime) {
+        return nanoTime + EPOCH_OFFSET_NANOS;
+    }
+
+    /**
+     * Starts the root span for an incoming request and makes it current, honouring the caller's trace if a valid
+     * {@code traceparent} header was sent.
+     *
+     * @param startNanos {@link System#nanoTime()} at which the request started
+     */
+    public static Span startServerSpan(String name, String traceparent, long startNanos) {
+        if (exporter == null) {
+            return Span.NOOP;
+        }
+
+        SpanContext.Remote remote = SpanContext.parseTraceparent(traceparent);
+        boolean sampled = remote != null ? remote.sampled() : ThreadLocalRandom.current().nextDouble() < sampleRatio;
+        if (!sampled) {
+            return Span.NOOP;
+        }
+
+        String traceId = remote != null ? remote.parent().traceId() : SpanContext.newTraceId();
+        String parentSpanId = remote != null ? remote.parent().spanId() : null;
+        return push(name, new SpanContext(traceId, SpanContext.newSpanId()), parentSpanId, Span.Kind.SERVER, startNanos);
+    }
+
+    /**
+     * Starts a child of the current span and makes it current until closed.
+     */
+    public static Span startSpan(String name) {
+        Span parent = currentSpan.get();
+        if (parent == null || !parent.isRecording()) {
+            return Span.NOOP;
+        }
+        return push(name, new SpanContext(parent.context().traceId(), SpanContext.newSpanId()),
+            parent.context().spanId(), Span.Kind.INTERNAL, System.nanoTime());
+    }
+
+    /**
+     * Starts a span under an explicit parent, typically one captured on another thread, and makes it current.
+     *
+     * @param parent the parent's context, or null if the parent wasn't traced
+     */
+    public static Span startSpan(String name, SpanContext parent) {
+        if (parent == null || exporter == null) {
+            return Span.NOOP;
+        }
+        return push(name, new SpanContext(parent.traceId(), SpanContext.newSpanId()), parent.spanId(),
+            Span.Kind.INTERNAL, System.nanoTime());
+    }
+
+    /**
+     * Records an already-finished span after the fact, without touching the current span.
+     */
+    public static void recordSpan(String name, SpanContext parent, long startNanos, long endNanos) {
+        if (parent == null || exporter == null) {
+            return;
+        }
+        Span span = new Span(name, new SpanContext(parent.traceId(), SpanContext.newSpanId()), parent.spanId(),
+            Span.Kind.INTERNAL, startNanos, null, false);
+        span.end(endNanos);
+    }
+
+    /**
+     * @return the current span's context, to hand over to another thread, or null if nothing is being traced
+     */
+    public static SpanContext currentContext() {
+        Span span = currentSpan.get();
+        return span == null ? null : span.context();
+    }
+
+    private static Span push(String name, SpanContext context, String parentSpanId, Span.Kind kind, long startNanos) {
+        Span span = new Span(name, context, parentSpanId, kind, startNanos, currentSpan.get(), true);
+        currentSpan.set(span);
+        return span;
+    }
+
+    static void finish(Span span) {
+        if (span.current && currentSpan.get() == span) {
+            if (span.previous == null) {
+                currentSpan.remove();
+            } else {
+                currentSpan.set(span.previous);
+            }
+        }
+
+        SpanExporter target = exporter;
+        if (target != null) {
+            target.export(span);
+        }
+    }
+}
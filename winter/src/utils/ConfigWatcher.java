@@ -0,0 +1,104 @@
+package utils;
+
+import logging.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Re-reads a properties file whenever it changes, and hands each new version to a listener along with the keys that
+ * changed. The current version is swapped in whole, so anyone reading {@link #current()} gets one consistent file.
+ * <p>
+ * It polls the file's modification time and size rather than using a {@link java.nio.file.WatchService}, because
+ * config files tend to get replaced (by editors, or by a volume mount swapping a symlink) rather than written in
+ * place, which watch services are hit and miss about noticing. Polling every few seconds costs one stat call.
+ */
+public final class ConfigWatcher implements AutoCloseable {
+    private record Version(long modifiedMillis, long size) {}
+
+    private final Path path;
+    private final BiConsumer<PropertiesReader, Set<String>> listener;
+    private final ScheduledExecutorService poller;
+    private volatile PropertiesReader current;
+    private Version version;
+
+    /**
+     * @param initial  the file as already read at startup
+     * @param listener called on the watcher's thread with each new version and its changed keys
+     */
+    public ConfigWatcher(
+        Path path, PropertiesReader initial, Duration interval, BiConsumer<PropertiesReader, Set<String>> listener
+    ) {
+        this.path = path;
+        this.current = initial;
+        this.listener = listener;
+        this.version = version();
+
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "config-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long millis = interval.toMillis();
+        poller.scheduleWithFixedDelay(this::poll, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the latest version of the file that was read successfully
+     */
+    public PropertiesReader current() {
+        return current;
+    }
+
+    private Version version() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Version(attributes.lastModifiedTime().toMillis(), attributes.size());
+        } catch (IOException e) {
+            return null; // mid-replace, most likely, so try again next time
+        }
+    }
+
+    private void poll() {
+        Version latest = version();
+        if (latest == null || latest.equals(version)) {
+            return;
+        }
+
+        PropertiesReader next;
+        try {
+            next = new PropertiesReader(path);
+        } catch (IOException e) {
+            Log.error("Failed to reload %s, keeping the old config: %s", path, e.getMessage());
+            return;
+        }
+        version = latest;
+
+        PropertiesReader previous = current;
+        Set<String> changed = next.changedKeys(previous);
+        if (changed.isEmpty()) {
+            return; // touched, or only comments changed
+        }
+        current = next;
+
+        try {
+            listener.accept(next, changed);
+        } catch (RuntimeException e) {
+            // the scheduler would quietly stop polling if this got out
+            Log.error("Failed to apply reloaded config: %s: %s", e.getClass().getName(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
+}
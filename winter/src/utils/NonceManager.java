@@ -14,4 +14,8 @@ public class NonceManager {
         // add() returns true if the element was added (i.e. was not already present)
         return usedNonces.add(nonce);
     }
+
+    public int size() {
+        return usedNonces.size();
+    }
 }
@@ -1,17 +1,31 @@
 package utils;
 
+import logging.Log;
+
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+/**
+ * A properties file, read once into an immutable map. Reloading means reading the file into a new reader, so one
+ * reader never changes underneath whoever's holding it.
+ */
 public class PropertiesReader {
-    private static final Map<String, String> properties = new HashMap<>();
+    private final Map<String, String> properties;
 
     public PropertiesReader(String path) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get(path));
+        this(Paths.get(path));
+    }
+
+    public PropertiesReader(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path);
+        Map<String, String> properties = new HashMap<>();
 
         for (String line : lines) {
             String stripped = line.strip();
@@ -21,13 +35,36 @@ public class PropertiesReader {
             }
 
             String[] parts = stripped.split("=", 2);
+            if (parts.length < 2) {
+                Log.warn("Ignoring line without a value in properties file: %s", stripped);
+                continue;
+            }
             properties.put(parts[0].strip(), parts[1].strip());
         }
+        this.properties = Map.copyOf(properties);
+    }
+
+    /**
+     * @return keys added, removed or given a different value since {@code previous}
+     */
+    public Set<String> changedKeys(PropertiesReader previous) {
+        Set<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (!entry.getValue().equals(previous.properties.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String key : previous.properties.keySet()) {
+            if (!properties.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
     }
 
     public String getStringProperty(String key, String defaultValue) {
         if (!properties.containsKey(key)) {
-            System.err.printf("Key %s not found in properties file, defaulting to %s%n", key, defaultValue);
+            Log.warn("Key %s not found in properties file, defaulting to %s", key, defaultValue);
             return defaultValue;
         }
         return properties.get(key);
@@ -38,8 +75,30 @@ public class PropertiesReader {
         try {
             return Integer.parseInt(value);
         } catch (NumberFormatException e) {
-            System.err.printf("Key %s is not a valid integer value, defaulting to %d%n", key, defaultValue);
+            Log.warn("Key %s is not a valid integer value, defaulting to %d", key, defaultValue);
             return defaultValue;
         }
     }
+
+    public double getDoubleProperty(String key, double defaultValue) {
+        String value = getStringProperty(key, String.valueOf(defaultValue));
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            Log.warn("Key %s is not a valid number, defaulting to %s", key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBooleanProperty(String key, boolean defaultValue) {
+        String value = getStringProperty(key, String.valueOf(defaultValue));
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        Log.warn("Key %s is not true or false, defaulting to %s", key, defaultValue);
+        return defaultValue;
+    }
 }
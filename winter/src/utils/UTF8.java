@@ -0,0 +1,74 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class UTF8 {
+    private static final int VALIDATE_BUFFER_SIZE = 8192;
+
+    /**
+     * Counts how many bytes a string takes up when UTF-8 encoded, without actually encoding it.
+     */
+    public static int encodedLength(CharSequence string) {
+        int length = string.length();
+        int bytes = length;
+
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                continue; // ASCII fast path
+            }
+
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                bytes += 2; // 4 bytes for the pair, which is already counted as 2 chars
+                i++;
+            } else {
+                bytes += 2;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Checks that a file is valid UTF-8, i.e. that {@link Files#readString} would read it, a buffer at a time rather
+     * than holding the whole thing in memory.
+     *
+     * @throws CharacterCodingException if it isn't, same as {@link Files#readString} would
+     */
+    public static void validate(Path file) throws IOException {
+        // a fresh decoder reports malformed input, rather than replacing it like String's constructors do
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        ByteBuffer in = ByteBuffer.allocate(VALIDATE_BUFFER_SIZE);
+        CharBuffer out = CharBuffer.allocate(VALIDATE_BUFFER_SIZE);
+
+        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+            while (true) {
+                boolean end = channel.read(in) == -1;
+                in.flip();
+                CoderResult result;
+                do {
+                    out.clear(); // the decoded text is thrown away, only whether it decoded matters
+                    result = decoder.decode(in, out, end);
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                } while (result.isOverflow());
+                if (end) {
+                    return;
+                }
+                in.compact(); // keeps the start of a character split across reads
+            }
+        }
+    }
+}